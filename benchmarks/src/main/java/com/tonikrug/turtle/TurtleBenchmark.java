@@ -0,0 +1,97 @@
+package com.tonikrug.turtle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Each stage of running a script, measured separately on the programs in
+// the corpus resource directory. Every stage starts from the output of the
+// previous one, prepared once per trial.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TurtleBenchmark {
+    @Param({"fib", "loops", "strings", "alloc", "dispatch", "closures"})
+    String program;
+
+    private String source;
+    private List<Token> tokens;
+    private List<Stmt> statements;
+    // Scripts print their result; keep it out of the JMH output.
+    private final PrintStream out =
+            new PrintStream(OutputStream.nullOutputStream());
+    private final ErrorReporter errors = new ErrorReporter(System.err);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String path = "corpus/" + program + ".turtle";
+        try (InputStream in = TurtleBenchmark.class.getResourceAsStream(path)) {
+            if (in == null) throw new IOException("Missing " + path);
+            source = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        tokens = new Scanner(source, errors).scanTokens();
+        statements = new Parser(tokens, errors).parse();
+        new Resolver(errors).resolve(statements);
+        if (errors.hadError) {
+            throw new IllegalStateException(path + " has errors.");
+        }
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, errors).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens, errors).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver(errors).resolve(statements);
+        return statements;
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        Interpreter interpreter = new Interpreter(out, errors);
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+
+    // Runs with the GC profiler so allocation rates are reported next to
+    // throughput. Any JMH command line options can still be given.
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -12,27 +12,36 @@ public class GenerateAst {
             System.exit(64);
         }
         String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+        defineAst(outputDir, "Expr", "", Arrays.asList(
+                "Assign   : Token name, Expr value; int depth = -1, int slot",
+                "Binary   : Expr left, Token operator, Expr right;" +
+                        " Specialization specialization =" +
+                        " Specialization.UNINITIALIZED",
+                "Call     : Expr callee, Token paren, List<Expr> arguments;" +
+                        " boolean isTail",
+                "Get      : Expr object, Token name; InlineCache cache",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
-                "Unary    : Token operator, Expr right"
+                "Set      : Expr object, Token name, Expr value;" +
+                        " InlineCache cache",
+                "Super    : Token keyword, Token method; int depth, int slot",
+                "This     : Token keyword; int depth",
+                "Unary    : Token operator, Expr right",
+                "Variable : Token name; int depth = -1, int slot"
         ));
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+        // The Parser records the file and line each statement starts on.
+        defineAst(outputDir, "Stmt", "int line, String file", Arrays.asList(
+                "Block      : List<Stmt> statements; int slots," +
+                        " boolean[] captured",
                 "Class      : Token name, Expr.Variable superclass," +
                         " List<Stmt.Function> methods",
                 "Expression : Expr expression",
                 "Function   : Token name, List<Token> params," +
-                        " List<Stmt> body",
+                        " List<Stmt> body; int slots, boolean[] captured," +
+                        " boolean isMethod," +
+                        " JitCompiler.Profile profile",
                 "If         : Expr condition, Stmt thenBranch," +
                         " Stmt elseBranch",
                 "Print      : Expr expression",
@@ -43,7 +52,8 @@ public class GenerateAst {
     }
 
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, String baseFields,
+            List<String> types)
             throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         try (PrintWriter writer = new PrintWriter(path, "UTF-8")) {
@@ -52,11 +62,20 @@ public class GenerateAst {
             writer.println("import java.util.List;");
             writer.println();
             writer.println("abstract class " + baseName + " {");
+            if (!baseFields.isEmpty()) {
+                for (String field : baseFields.split(", ")) {
+                    writer.println("  " + field + ";");
+                }
+            }
             defineVisitor(writer, baseName, types);
             for (String type : types) {
                 String className = type.split(":")[0].trim();
-                String fields = type.split(":")[1].trim();
-                defineType(writer, baseName, className, fields);
+                // Fields after a ';' aren't constructor parameters but
+                // mutable state the interpreter keeps on the node.
+                String[] fields = type.split(":")[1].split(";");
+                String mutableFields = fields.length > 1 ? fields[1].trim() : "";
+                defineType(writer, baseName, className, fields[0].trim(),
+                        mutableFields);
             }
             // The base accept() method.
             writer.println();
@@ -80,7 +99,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String mutableFieldList) {
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
         // Constructor.
@@ -105,6 +124,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (!mutableFieldList.isEmpty()) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
         writer.println("    }");
 
     }
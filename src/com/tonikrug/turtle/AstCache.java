@@ -0,0 +1,662 @@
+package com.tonikrug.turtle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Resolved syntax trees saved next to their script as <script>.turtlec, so
+// a script that hasn't changed since it was last run skips the Scanner,
+// Parser and Resolver. A cache file holds the SHA-256 of the source it was
+// made from and is only used while the source still has that hash.
+//
+// The file is a header, a table of every string in the tree, and then the
+// statements written out depth first. Each node is a tag byte followed by
+// its fields, including what the Resolver stored on it; state the engines
+// keep on nodes while running, like inline caches, is left out.
+final class AstCache {
+    private static final int MAGIC = 0x54545243; // "TTRC"
+    // Bump whenever the format or the fields on the nodes change.
+    private static final int VERSION = 3;
+
+    private static final byte NONE = 0;
+    // Statement tags
+    private static final byte BLOCK = 1, CLASS = 2, EXPRESSION = 3,
+            FUNCTION = 4, IF = 5, PRINT = 6, RETURN = 7, VAR = 8, WHILE = 9;
+    // Expression tags
+    private static final byte ASSIGN = 1, BINARY = 2, CALL = 3, GET = 4,
+            GROUPING = 5, LITERAL = 6, LOGICAL = 7, SET = 8, SUPER = 9,
+            THIS = 10, UNARY = 11, VARIABLE = 12;
+    // Literal value tags
+    private static final byte TRUE = 1, FALSE = 2, NUMBER = 3, STRING = 4;
+
+    private AstCache() {}
+
+    static Path pathFor(Path script) {
+        return script.resolveSibling(script.getFileName() + "c");
+    }
+
+    static byte[] hash(MappedSource source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.bytes());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // The cached statements for a source with the given hash, or null if
+    // there's no cache file or it's stale or unreadable. The statements are
+    // marked as coming from file.
+    static List<Stmt> load(Path cache, byte[] hash, String file) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(cache);
+        } catch (IOException e) {
+            // Usually there's no cache file yet.
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            byte[] cachedHash = new byte[hash.length];
+            in.readFully(cachedHash);
+            if (!Arrays.equals(cachedHash, hash)) return null;
+            return new Reader(in, file).readStatements();
+        } catch (IOException | RuntimeException e) {
+            // A truncated or corrupt file is just a miss.
+            return null;
+        }
+    }
+
+    // Save resolved statements. Failing to write the cache isn't an error;
+    // the script is simply parsed again next time.
+    static void store(Path cache, byte[] hash, List<Stmt> statements) {
+        try {
+            Writer writer = new Writer();
+            writer.writeStatements(statements);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash);
+            writeInt(out, writer.strings.size());
+            for (String string : writer.strings.keySet()) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                writeInt(out, utf8.length);
+                out.write(utf8);
+            }
+            writer.body.writeTo(out);
+
+            // Written aside and moved into place, so a concurrent run never
+            // sees half a file.
+            Path temp = Files.createTempFile(cache.toAbsolutePath().getParent(),
+                    cache.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // Leave it uncached.
+        }
+    }
+
+    // Non-negative ints as 7 bits per byte, low bits first.
+    private static void writeInt(DataOutputStream out, int value)
+            throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    private static final class Writer
+            implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+        // Each distinct string with its index in the table, in table order.
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(body);
+
+        void writeStatements(List<Stmt> statements) throws IOException {
+            try {
+                writeStmts(statements);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void writeStmts(List<? extends Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) write(statement);
+        }
+
+        private void write(Stmt stmt) {
+            if (stmt == null) {
+                writeByte(NONE);
+                return;
+            }
+            stmt.accept(this);
+        }
+
+        private void start(byte tag, Stmt stmt) {
+            writeByte(tag);
+            writeInt(stmt.line);
+        }
+
+        private void writeExprs(List<Expr> expressions) {
+            writeInt(expressions.size());
+            for (Expr expression : expressions) write(expression);
+        }
+
+        private void write(Expr expr) {
+            if (expr == null) {
+                writeByte(NONE);
+                return;
+            }
+            expr.accept(this);
+        }
+
+        private void write(Token token) {
+            writeByte(token.type.ordinal());
+            // Punctuation and keywords get their text back from their type.
+            if (token.type.lexeme == null) writeString(token.lexeme());
+            writeValue(token.literal);
+            writeInt(token.line);
+        }
+
+        private void writeTokens(List<Token> tokens) {
+            writeInt(tokens.size());
+            for (Token token : tokens) write(token);
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                writeByte(NONE);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                writeByte(NUMBER);
+                try {
+                    out.writeDouble((Double)value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                writeByte(STRING);
+                writeString((String)value);
+            }
+        }
+
+        private void writeString(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+            writeInt(index);
+        }
+
+        // Depths are -1 for globals, so they're stored one higher.
+        private void writeDepth(int depth) {
+            writeInt(depth + 1);
+        }
+
+        private void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        // One flag per slot, so the slot count before it gives the length.
+        private void writeCaptured(boolean[] captured) {
+            for (boolean slot : captured) writeBoolean(slot);
+        }
+
+        private void writeByte(int value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                AstCache.writeInt(out, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            start(BLOCK, stmt);
+            writeStmts(stmt.statements);
+            writeInt(stmt.slots);
+            writeCaptured(stmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            start(CLASS, stmt);
+            write(stmt.name);
+            write(stmt.superclass);
+            writeStmts(stmt.methods);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            start(EXPRESSION, stmt);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            start(FUNCTION, stmt);
+            write(stmt.name);
+            writeTokens(stmt.params);
+            writeStmts(stmt.body);
+            writeInt(stmt.slots);
+            writeCaptured(stmt.captured);
+            writeBoolean(stmt.isMethod);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            start(IF, stmt);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            start(PRINT, stmt);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            start(RETURN, stmt);
+            write(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            start(VAR, stmt);
+            write(stmt.name);
+            write(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            start(WHILE, stmt);
+            write(stmt.condition);
+            write(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeByte(ASSIGN);
+            write(expr.name);
+            write(expr.value);
+            writeDepth(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeByte(BINARY);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeByte(CALL);
+            write(expr.callee);
+            write(expr.paren);
+            writeExprs(expr.arguments);
+            writeBoolean(expr.isTail);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            writeByte(GET);
+            write(expr.object);
+            write(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeByte(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeByte(LITERAL);
+            writeValue(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeByte(LOGICAL);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            writeByte(SET);
+            write(expr.object);
+            write(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            writeByte(SUPER);
+            write(expr.keyword);
+            write(expr.method);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            writeByte(THIS);
+            write(expr.keyword);
+            writeInt(expr.depth);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeByte(UNARY);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeByte(VARIABLE);
+            write(expr.name);
+            writeDepth(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+    }
+
+    private static final class Reader {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+        private final DataInputStream in;
+        private final String[] strings;
+        // Which strings have been interned, for use as identifiers.
+        private final boolean[] interned;
+        private final String file;
+
+        Reader(DataInputStream in, String file) throws IOException {
+            this.in = in;
+            this.file = file;
+            strings = new String[readInt(in)];
+            interned = new boolean[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[readInt(in)];
+                in.readFully(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+        }
+
+        List<Stmt> readStatements() throws IOException {
+            List<Stmt> statements = readStmts();
+            if (in.read() != -1) throw new IOException("Trailing bytes.");
+            return statements;
+        }
+
+        private List<Stmt> readStmts() throws IOException {
+            int count = readInt(in);
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(readStmt());
+            return statements;
+        }
+
+        private Stmt readStmt() throws IOException {
+            byte tag = in.readByte();
+            if (tag == NONE) return null;
+            int line = readInt(in);
+            Stmt stmt;
+            switch (tag) {
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(readStmts());
+                    block.slots = readInt(in);
+                    block.captured = readCaptured(block.slots);
+                    stmt = block;
+                    break;
+                }
+                case CLASS: {
+                    Token name = readToken();
+                    Expr.Variable superclass = (Expr.Variable)readExpr();
+                    List<Stmt.Function> methods = new ArrayList<>();
+                    for (Stmt method : readStmts()) {
+                        methods.add((Stmt.Function)method);
+                    }
+                    stmt = new Stmt.Class(name, superclass, methods);
+                    break;
+                }
+                case EXPRESSION:
+                    stmt = new Stmt.Expression(readExpr());
+                    break;
+                case FUNCTION: {
+                    Token name = readToken();
+                    List<Token> params = readTokens();
+                    Stmt.Function function =
+                            new Stmt.Function(name, params, readStmts());
+                    function.slots = readInt(in);
+                    function.captured = readCaptured(function.slots);
+                    function.isMethod = in.readBoolean();
+                    stmt = function;
+                    break;
+                }
+                case IF: {
+                    Expr condition = readExpr();
+                    Stmt thenBranch = readStmt();
+                    stmt = new Stmt.If(condition, thenBranch, readStmt());
+                    break;
+                }
+                case PRINT:
+                    stmt = new Stmt.Print(readExpr());
+                    break;
+                case RETURN: {
+                    Token keyword = readToken();
+                    stmt = new Stmt.Return(keyword, readExpr());
+                    break;
+                }
+                case VAR: {
+                    Token name = readToken();
+                    stmt = new Stmt.Var(name, readExpr());
+                    break;
+                }
+                case WHILE: {
+                    Expr condition = readExpr();
+                    stmt = new Stmt.While(condition, readStmt());
+                    break;
+                }
+                default:
+                    throw new IOException("Bad statement tag " + tag + ".");
+            }
+            stmt.line = line;
+            stmt.file = file;
+            return stmt;
+        }
+
+        private List<Expr> readExprs() throws IOException {
+            int count = readInt(in);
+            List<Expr> expressions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) expressions.add(readExpr());
+            return expressions;
+        }
+
+        private Expr readExpr() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Token name = readToken();
+                    Expr.Assign expr = new Expr.Assign(name, readExpr());
+                    expr.depth = readInt(in) - 1;
+                    expr.slot = readInt(in);
+                    return expr;
+                }
+                case BINARY: {
+                    Expr left = readExpr();
+                    Token operator = readToken();
+                    return new Expr.Binary(left, operator, readExpr());
+                }
+                case CALL: {
+                    Expr callee = readExpr();
+                    Token paren = readToken();
+                    Expr.Call call =
+                            new Expr.Call(callee, paren, readExprs());
+                    call.isTail = in.readBoolean();
+                    return call;
+                }
+                case GET: {
+                    Expr object = readExpr();
+                    return new Expr.Get(object, readToken());
+                }
+                case GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case LITERAL:
+                    return new Expr.Literal(readValue());
+                case LOGICAL: {
+                    Expr left = readExpr();
+                    Token operator = readToken();
+                    return new Expr.Logical(left, operator, readExpr());
+                }
+                case SET: {
+                    Expr object = readExpr();
+                    Token name = readToken();
+                    return new Expr.Set(object, name, readExpr());
+                }
+                case SUPER: {
+                    Token keyword = readToken();
+                    Expr.Super expr = new Expr.Super(keyword, readToken());
+                    expr.depth = readInt(in);
+                    expr.slot = readInt(in);
+                    return expr;
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(readToken());
+                    expr.depth = readInt(in);
+                    return expr;
+                }
+                case UNARY: {
+                    Token operator = readToken();
+                    return new Expr.Unary(operator, readExpr());
+                }
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(readToken());
+                    expr.depth = readInt(in) - 1;
+                    expr.slot = readInt(in);
+                    return expr;
+                }
+                default:
+                    throw new IOException("Bad expression tag " + tag + ".");
+            }
+        }
+
+        private Token readToken() throws IOException {
+            TokenType type = TOKEN_TYPES[in.readUnsignedByte()];
+            String lexeme = type.lexeme;
+            if (lexeme == null) {
+                int index = readInt(in);
+                // Names are interned, as the Scanner does.
+                if (type == TokenType.IDENTIFIER && !interned[index]) {
+                    strings[index] = strings[index].intern();
+                    interned[index] = true;
+                }
+                lexeme = strings[index];
+            }
+            Object literal = readValue();
+            return new Token(type, lexeme, literal, readInt(in));
+        }
+
+        private List<Token> readTokens() throws IOException {
+            int count = readInt(in);
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) tokens.add(readToken());
+            return tokens;
+        }
+
+        private boolean[] readCaptured(int slots) throws IOException {
+            boolean[] captured = new boolean[slots];
+            for (int i = 0; i < slots; i++) captured[i] = in.readBoolean();
+            return captured;
+        }
+
+        private Object readValue() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NONE: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return in.readDouble();
+                case STRING: return strings[readInt(in)];
+                default:
+                    throw new IOException("Bad value tag " + tag + ".");
+            }
+        }
+    }
+}
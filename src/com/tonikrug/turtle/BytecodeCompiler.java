@@ -0,0 +1,505 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+
+// Compiles resolved statements into Chunks for the VM. Variable accesses
+// start from the (depth, slot) pairs the Resolver recorded on the nodes.
+//
+// Unlike the Interpreter, the VM keeps a local that no nested function
+// captures in a slot of its frame on the operand stack, where reading it
+// is an array access and a number in it stays unboxed. Only captured locals
+// live in Environments, and a scope only gets one if it has any of them.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final ErrorReporter errors;
+    private Chunk chunk;
+    // The innermost local scope, or null at the top level.
+    private Scope scope = null;
+    // Stack slots taken by the current function's locals.
+    private int locals = 0;
+    private int line = 1;
+
+    // One of the Resolver's scopes, as the VM lays it out.
+    private static final class Scope {
+        final Scope enclosing;
+        final boolean[] captured;
+        // Where each of the Resolver's slots went: its slot in the
+        // Environment if it's captured, its stack slot otherwise.
+        final int[] indexes;
+        final int environmentSize;
+        int declared = 0;
+        int stackSlots = 0;
+
+        Scope(Scope enclosing, boolean[] captured) {
+            this.enclosing = enclosing;
+            this.captured = captured;
+            indexes = new int[captured.length];
+            // Captured locals are defined in the order they're declared, so
+            // their places are known before any of them is.
+            int size = 0;
+            for (int i = 0; i < captured.length; i++) {
+                if (captured[i]) indexes[i] = size++;
+            }
+            environmentSize = size;
+        }
+
+        boolean hasEnvironment() {
+            return environmentSize > 0;
+        }
+    }
+
+    BytecodeCompiler(ErrorReporter errors) {
+        this.errors = errors;
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        String file = statements.isEmpty() ? null : statements.get(0).file;
+        chunk = new Chunk(null, false, file);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+        return chunk;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private Chunk function(Stmt.Function function, boolean isInitializer) {
+        Chunk enclosing = chunk;
+        int enclosingLocals = locals;
+        chunk = new Chunk(function, isInitializer, function.file);
+        line = function.name.line;
+        beginScope(function.captured);
+        // Slot 0 holds the receiver of a method and the callee of anything
+        // else, and the arguments follow. Captured ones are copied into the
+        // Environment.
+        locals = function.isMethod ? 0 : 1;
+        int parameters = function.params.size() +
+                (function.isMethod ? 1 : 0);
+        for (int i = 0; i < parameters; i++) {
+            int slot = scope.declared++;
+            if (scope.captured[slot]) {
+                emit(OpCode.GET_LOCAL);
+                emitShort(locals++);
+                emit(OpCode.DEFINE_CAPTURED);
+            } else {
+                scope.indexes[slot] = locals++;
+            }
+        }
+        for (Stmt statement : function.body) {
+            compile(statement);
+        }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+        // Returning drops the frame's slots and Environment.
+        scope = scope.enclosing;
+        locals = enclosingLocals;
+        Chunk compiled = chunk;
+        chunk = enclosing;
+        return compiled;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope(stmt.captured);
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    private void beginScope(boolean[] captured) {
+        scope = new Scope(scope, captured);
+        if (scope.hasEnvironment()) {
+            emit(OpCode.PUSH_SCOPE);
+            emitShort(scope.environmentSize);
+        }
+    }
+
+    private void endScope() {
+        if (scope.stackSlots > 0) {
+            emit(OpCode.POP_N);
+            emitShort(scope.stackSlots);
+            locals -= scope.stackSlots;
+        }
+        if (scope.hasEnvironment()) emit(OpCode.POP_SCOPE);
+        scope = scope.enclosing;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            line = stmt.superclass.name.line;
+            // INHERIT puts "super" in an Environment of its own.
+            emit(OpCode.INHERIT);
+            scope = new Scope(scope, new boolean[] {true});
+            scope.declared = 1;
+        }
+        for (Stmt.Function method : stmt.methods) {
+            Chunk body = function(method, method.name.lexeme().equals("init"));
+            emit(OpCode.FUNCTION);
+            emitShort(constant(body));
+        }
+        // CLASS leaves the Environment with "super" in it.
+        if (stmt.superclass != null) scope = scope.enclosing;
+        if (stmt.methods.size() > 255) {
+            errors.error(chunk.file, stmt.name,
+                    "Can't have more than 255 methods.");
+        }
+        line = stmt.name.line;
+        emit(OpCode.CLASS);
+        emitShort(constant(stmt.name));
+        emit((byte)stmt.methods.size());
+        emit((byte)(stmt.superclass != null ? 1 : 0));
+        define(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        // An assignment to a stack slot whose value isn't used stores it
+        // there without leaving a copy to pop.
+        if (stmt.expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)stmt.expression;
+            if (assign.depth != -1 && !isCaptured(assign.depth, assign.slot)) {
+                compile(assign.value);
+                line = assign.name.line;
+                local(OpCode.STORE_LOCAL, OpCode.SET_CAPTURED, assign.depth,
+                        assign.slot);
+                return null;
+            }
+        }
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        Chunk body = function(stmt, false);
+        line = stmt.name.line;
+        emit(OpCode.FUNCTION);
+        emitShort(constant(body));
+        define(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patchJump(thenJump);
+            return null;
+        }
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL);
+        }
+        define(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        if (expr.depth != -1) {
+            local(OpCode.SET_LOCAL, OpCode.SET_CAPTURED, expr.depth, expr.slot);
+        } else {
+            emit(OpCode.SET_GLOBAL);
+            emitShort(constant(expr.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER:       emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS:          emit(OpCode.LESS); break;
+            case LESS_EQUAL:    emit(OpCode.LESS_EQUAL); break;
+            case MINUS:         emit(OpCode.SUBTRACT); break;
+            case PLUS:          emit(OpCode.ADD); break;
+            case SLASH:         emit(OpCode.DIVIDE); break;
+            case STAR:          emit(OpCode.MULTIPLY); break;
+            case BANG_EQUAL:    emit(OpCode.EQUAL); emit(OpCode.NOT); break;
+            case EQUAL_EQUAL:   emit(OpCode.EQUAL); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            line = get.name.line;
+            emit(OpCode.GET_METHOD);
+            emitShort(constant(get));
+        } else {
+            compile(expr.callee);
+        }
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        if (expr.callee instanceof Expr.Get) {
+            emit(expr.isTail ? OpCode.TAIL_INVOKE : OpCode.INVOKE);
+        } else {
+            emit(expr.isTail ? OpCode.TAIL_CALL : OpCode.CALL);
+        }
+        emit((byte)expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emit(OpCode.GET_PROPERTY);
+        emitShort(constant(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (Boolean.TRUE.equals(expr.value)) {
+            emit(OpCode.TRUE);
+        } else if (Boolean.FALSE.equals(expr.value)) {
+            emit(OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT);
+            emitShort(constant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        // The tree-walker rejects non-instances before evaluating the value.
+        line = expr.name.line;
+        emit(OpCode.CHECK_INSTANCE);
+        emitShort(constant(expr.name));
+        compile(expr.value);
+        line = expr.name.line;
+        emit(OpCode.SET_PROPERTY);
+        emitShort(constant(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.method.line;
+        // "this" is the only slot of the method's scope, just inside the one
+        // with "super".
+        local(OpCode.GET_LOCAL, OpCode.GET_CAPTURED, expr.depth - 1, 0);
+        local(OpCode.GET_LOCAL, OpCode.GET_CAPTURED, expr.depth, expr.slot);
+        emit(OpCode.GET_SUPER);
+        emitShort(constant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        variable(expr.keyword, expr.depth, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG:  emit(OpCode.NOT); break;
+            case MINUS: emit(OpCode.NEGATE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        variable(expr.name, expr.depth, expr.slot);
+        return null;
+    }
+
+    private void variable(Token name, int depth, int slot) {
+        if (depth != -1) {
+            local(OpCode.GET_LOCAL, OpCode.GET_CAPTURED, depth, slot);
+        } else {
+            emit(OpCode.GET_GLOBAL);
+            emitShort(constant(name));
+        }
+    }
+
+    // Emits the stack or the Environment form of an access to the local
+    // the Resolver found depth scopes out, in slot. Only scopes with an
+    // Environment count towards the Environment's depth.
+    private boolean isCaptured(int depth, int slot) {
+        Scope target = scope;
+        for (int i = 0; i < depth; i++) {
+            target = target.enclosing;
+        }
+        return target.captured[slot];
+    }
+
+    private void local(byte stackOp, byte capturedOp, int depth, int slot) {
+        Scope target = scope;
+        int environments = 0;
+        for (int i = 0; i < depth; i++) {
+            if (target.hasEnvironment()) environments++;
+            target = target.enclosing;
+        }
+        if (target.captured[slot]) {
+            emit(capturedOp);
+            emitShort(environments);
+        } else {
+            emit(stackOp);
+        }
+        emitShort(target.indexes[slot]);
+    }
+
+    // Mirrors Interpreter.define(). A local on the stack is already in its
+    // slot, on top of the stack, so only captured ones need moving.
+    private void define(Token name) {
+        if (scope == null) {
+            emit(OpCode.DEFINE_GLOBAL);
+            emitShort(constant(name));
+            return;
+        }
+        int slot = scope.declared++;
+        if (scope.captured[slot]) {
+            emit(OpCode.DEFINE_CAPTURED);
+        } else {
+            scope.indexes[slot] = locals++;
+            scope.stackSlots++;
+        }
+    }
+
+    private void emit(byte op) {
+        chunk.write(op, line);
+    }
+
+    private void emitShort(int value) {
+        chunk.write((byte)((value >> 8) & 0xff), line);
+        chunk.write((byte)(value & 0xff), line);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        emitShort(0xffff);
+        return chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            errors.error(chunk.file, line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = chunk.count - loopStart + 2;
+        if (offset > 0xffff) {
+            errors.error(chunk.file, line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private int constant(Object value) {
+        int index = chunk.addConstant(value);
+        if (index > 0xffff) {
+            errors.error(chunk.file, line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,48 @@
+package com.tonikrug.turtle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A compiled function body (or the top-level script) for the VM: the
+// bytecode, a line for every byte of it, and the constants it refers to.
+class Chunk {
+    final Stmt.Function function; // null for the top-level script
+    final boolean isInitializer;
+    final String file; // The script it was compiled from, if any
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    Chunk(Stmt.Function function, boolean isInitializer, String file) {
+        this.function = function;
+        this.isInitializer = isInitializer;
+        this.file = file;
+    }
+
+    void write(byte value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = value;
+        lines[count] = line;
+        count++;
+    }
+
+    // Returns the index of the value in the constant pool, reusing an
+    // existing entry for values that are already there.
+    int addConstant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index != null) return index;
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndexes.put(value, constantCount);
+        return constantCount++;
+    }
+}
@@ -0,0 +1,280 @@
+package com.tonikrug.turtle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for JitCompiler: a constant pool,
+// fields, and methods with a Code attribute. Classes are emitted as version
+// 49 so the verifier infers types itself and no StackMapTable is needed.
+final class ClassAssembler {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // The opcodes JitCompiler uses.
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassAssembler(String name, String superName, String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    void field(int access, String fieldName, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(fieldName));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void method(int access, String methodName, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(methodName));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(code.length);
+            out.write(code.bytes, 0, code.length);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int[] interfaceRefs = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceRefs[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for (int ref : interfaceRefs) out.writeShort(ref);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, () -> {
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int nameIndex = utf8(internalName);
+        return entry("C" + internalName, () -> {
+            poolOut.writeByte(CONSTANT_CLASS);
+            poolOut.writeShort(nameIndex);
+        });
+    }
+
+    int fieldRef(String owner, String fieldName, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, fieldName, descriptor);
+    }
+
+    int methodRef(String owner, String methodName, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, methodName, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String memberName,
+                          String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(memberName);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = entry("N" + memberName + ":" + descriptor, () -> {
+            poolOut.writeByte(CONSTANT_NAME_AND_TYPE);
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(typeIndex);
+        });
+        return entry("M" + tag + owner + "." + memberName + ":" + descriptor,
+                () -> {
+                    poolOut.writeByte(tag);
+                    poolOut.writeShort(ownerIndex);
+                    poolOut.writeShort(nameAndType);
+                });
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    private int entry(String key, PoolWriter writer) {
+        Integer index = poolIndexes.get(key);
+        if (index != null) return index;
+        try {
+            writer.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndexes.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // The body of one method. Tracks the operand stack depth as
+    // instructions are added so max_stack comes out right.
+    static final class Code {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+        private int stack = 0;
+        int maxStack = 0;
+        int maxLocals = 0;
+
+        int length() {
+            return length;
+        }
+
+        // stackDelta is the net effect of the instruction on the stack.
+        void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjust(stackDelta);
+        }
+
+        void op(int opcode, int operand, int stackDelta) {
+            u1(opcode);
+            u1(operand);
+            adjust(stackDelta);
+        }
+
+        void opShort(int opcode, int operand, int stackDelta) {
+            u1(opcode);
+            u2(operand);
+            adjust(stackDelta);
+        }
+
+        void local(int opcode, int index, int stackDelta) {
+            op(opcode, index, stackDelta);
+            maxLocals = Math.max(maxLocals, index + 1);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, value & 0xff, 1);
+            } else {
+                opShort(SIPUSH, value, 1);
+            }
+        }
+
+        void jump(int opcode, Label target, int stackDelta) {
+            target.fixups.add(length);
+            opShort(opcode, 0, stackDelta);
+        }
+
+        void bind(Label label) {
+            label.position = length;
+        }
+
+        // Called once every label has been bound.
+        void resolve(List<Label> labels) {
+            for (Label label : labels) {
+                for (int at : label.fixups) {
+                    int offset = label.position - at;
+                    bytes[at + 1] = (byte)(offset >> 8);
+                    bytes[at + 2] = (byte)offset;
+                }
+            }
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte)value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+    }
+
+    static final class Label {
+        int position = -1;
+        final List<Integer> fixups = new ArrayList<>();
+    }
+}
@@ -0,0 +1,40 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+import java.util.Map;
+
+// A script compiled by a TurtleEngine, ready to run. Running it only
+// changes what the engines cache on the syntax tree, like the inline caches
+// of property accesses, and none of that refers to the context it ran in.
+// So one CompiledScript can be run by several threads at once as long as
+// each uses its own TurtleContext, and a run doesn't keep the contexts of
+// earlier runs alive.
+public final class CompiledScript {
+    private final TurtleEngine engine;
+    private final List<Stmt> statements;
+
+    CompiledScript(TurtleEngine engine, List<Stmt> statements) {
+        this.engine = engine;
+        this.statements = statements;
+    }
+
+    // Run against fresh globals, returning them
+    public TurtleContext execute() throws TurtleException {
+        return execute(engine.createContext());
+    }
+
+    // Run against fresh globals that start out as bindings, returning them
+    public TurtleContext execute(Map<String, ?> bindings)
+            throws TurtleException {
+        TurtleContext context = engine.createContext();
+        bindings.forEach(context::put);
+        return execute(context);
+    }
+
+    // Run against the globals of context, which keeps whatever the script
+    // defines or assigns
+    public TurtleContext execute(TurtleContext context) throws TurtleException {
+        context.execute(statements);
+        return context;
+    }
+}
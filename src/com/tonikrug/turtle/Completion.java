@@ -0,0 +1,9 @@
+package com.tonikrug.turtle;
+
+// How a statement finished, returned by the Interpreter's statement visitor.
+// RETURN propagates out through blocks and loops to the function call, which
+// picks the returned value up from the Interpreter.
+enum Completion {
+    NORMAL,
+    RETURN
+}
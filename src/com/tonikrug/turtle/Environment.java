@@ -2,42 +2,72 @@ package com.tonikrug.turtle;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Globals live in a map keyed by name, since they can be referenced before
+// they are declared. Every other scope is a fixed-size frame of slots whose
+// indexes and count were handed out by the Resolver in declaration order.
+//
+// Tasks on other threads share the globals, so their map is concurrent. It
+// can't hold null, so a global that is nil holds NIL instead.
 class Environment {
+    private static final Object[] EMPTY = new Object[0];
+    private static final Object NIL = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if (enclosing != null) return enclosing.get(name);
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
-    }
+    private final Map<String, Object> values;
+    private final Object[] slots;
+    private int count = 0;
 
     Environment() {
         enclosing = null;
+        values = new ConcurrentHashMap<>();
+        slots = EMPTY;
     }
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        values = null;
+        slots = size == 0 ? EMPTY : new Object[size];
     }
 
-    void assign(Token name, Object value){
-        if (values.containsKey(name.lexeme)){
-            values.put(name.lexeme, value);
-            return;
-        }
+    Object get(Token name) {
+        Object value = values.get(name.lexeme());
+        if (value != null) return value == NIL ? null : value;
+        throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme() + "'.");
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+    void assign(Token name, Object value){
+        if (values.replace(name.lexeme(), value == null ? NIL : value) != null) {
             return;
         }
 
         throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+                "Undefined variable '" + name.lexeme() + "'.");
+    }
+
+    // A global by name, or null if there's none
+    Object get(String name) {
+        Object value = values.get(name);
+        return value == NIL ? null : value;
+    }
+
+    // A copy of every global, by name
+    Map<String, Object> globals() {
+        Map<String, Object> globals = new HashMap<>();
+        values.forEach((name, value) ->
+                globals.put(name, value == NIL ? null : value));
+        return globals;
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        values.put(name, value == null ? NIL : value);
+    }
+
+    // Locals are defined in the same order the Resolver declared them, so
+    // the next free slot is always the one it assigned.
+    void define(Object value) {
+        slots[count++] = value;
     }
 
     Environment ancestor(int distance) {
@@ -48,11 +78,11 @@ class Environment {
         return environment;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 }
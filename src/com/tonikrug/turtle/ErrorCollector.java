@@ -0,0 +1,50 @@
+package com.tonikrug.turtle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps error messages instead of printing them, so the embedding API can
+// hand them to its caller in a TurtleException, and files parsed at the
+// same time can report their errors in order.
+class ErrorCollector extends ErrorReporter {
+    private final List<String> messages = new ArrayList<>();
+    // The line of the first error, or -1 if there wasn't one yet
+    private int line = -1;
+
+    ErrorCollector() {
+        super(null);
+    }
+
+    @Override
+    synchronized void print(int line, String message) {
+        if (this.line < 0) this.line = line;
+        print(message);
+    }
+
+    @Override
+    synchronized void print(String message) {
+        messages.add(message);
+    }
+
+    // Passes the errors so far on to reporter as if they had been reported
+    // there, then forgets them
+    synchronized void forwardTo(ErrorReporter reporter) {
+        for (String message : messages) {
+            reporter.print(message);
+        }
+        if (hadError) reporter.hadError = true;
+        messages.clear();
+        line = -1;
+        hadError = false;
+    }
+
+    // The errors so far, which are then forgotten
+    synchronized TurtleException drain() {
+        TurtleException exception = new TurtleException(messages, line);
+        messages.clear();
+        line = -1;
+        hadError = false;
+        hadRuntimeError = false;
+        return exception;
+    }
+}
@@ -0,0 +1,73 @@
+package com.tonikrug.turtle;
+
+import java.io.PrintStream;
+
+// Where the errors of one Turtle context go, and whether there were any.
+// Every stage that can find an error is handed the reporter of the context
+// it works for, so contexts running side by side never see each other's
+// errors. Files can be parsed on several threads at once, so the flags are
+// volatile.
+class ErrorReporter {
+    private final PrintStream err;
+    volatile boolean hadError = false;
+    volatile boolean hadRuntimeError = false;
+    // Whether messages name the script they're about, which is only needed
+    // when more than one is run.
+    boolean showFiles = false;
+
+    ErrorReporter(PrintStream err) {
+        this.err = err;
+    }
+
+    // Report an error at a specific line
+    void error(int line, String message) {
+        error(null, line, message);
+    }
+
+    void error(String file, int line, String message) {
+        report(file, line, "", message);
+    }
+
+    void error(Token token, String message) {
+        error(null, token, message);
+    }
+
+    void error(String file, Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(file, token.line, " at end", message);
+        } else {
+            report(file, token.line, " at '" + token.lexeme() + "'",
+                    message);
+        }
+    }
+
+    // Report an error with additional context
+    private void report(String file, int line, String where,
+                        String message) {
+        print(line, location(file, line) + " Error" + where + ": " + message);
+        hadError = true; // Set the error flag
+    }
+
+    void runtimeError(RuntimeError error) {
+        print(error.line,
+                error.getMessage() + "\n" + location(error.file, error.line));
+        hadRuntimeError = true;
+    }
+
+    private String location(String file, int line) {
+        if (showFiles && file != null) {
+            return "[" + file + ":line " + line + "]";
+        }
+        return "[line " + line + "]";
+    }
+
+    // The message of an error at line
+    void print(int line, String message) {
+        print(message);
+    }
+
+    // Every message goes out through here.
+    void print(String message) {
+        err.println(message);
+    }
+}
@@ -0,0 +1,118 @@
+package com.tonikrug.turtle;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Execution counters enabled by --stats: calls per function, statements run
+// per file and line, instances created per class and environments allocated.
+// The engines bump them as they go; JMX clients read them through
+// InterpreterStatsMXBean while the script runs, and dump() prints them when
+// it ends.
+//
+// Statements are counted by the tree-walking Interpreter only, since the VM
+// and compiled JIT code don't execute statement nodes one at a time.
+final class ExecutionStats implements InterpreterStatsMXBean {
+    static final String OBJECT_NAME = "com.tonikrug.turtle:type=Interpreter";
+    // Where statements entered at the prompt are counted.
+    private static final String PROMPT = "<prompt>";
+
+    private final Map<Stmt.Function, LongAdder> calls =
+            new ConcurrentHashMap<>();
+    // Counts by line, by file
+    private final Map<String, Map<Integer, LongAdder>> statements =
+            new ConcurrentHashMap<>();
+    private final Map<TurtleClass, LongAdder> instances =
+            new ConcurrentHashMap<>();
+    private final LongAdder environments = new LongAdder();
+
+    void call(Stmt.Function function) {
+        calls.computeIfAbsent(function, k -> new LongAdder()).increment();
+    }
+
+    void statement(Stmt stmt) {
+        String file = stmt.file != null ? stmt.file : PROMPT;
+        statements.computeIfAbsent(file, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(stmt.line, k -> new LongAdder())
+                .increment();
+    }
+
+    void instance(TurtleClass klass) {
+        instances.computeIfAbsent(klass, k -> new LongAdder()).increment();
+    }
+
+    void environment() {
+        environments.increment();
+    }
+
+    @Override
+    public Map<String, Long> getFunctionCalls() {
+        Map<String, Long> result = new TreeMap<>();
+        calls.forEach((function, count) -> result.merge(
+                function.name.lexeme() + ":" + function.name.line,
+                count.sum(), Long::sum));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStatementsByLine() {
+        // In order of file, then line
+        Map<String, Long> result = new LinkedHashMap<>();
+        new TreeMap<>(statements).forEach((file, lines) ->
+                new TreeMap<>(lines).forEach((line, count) ->
+                        result.put(file + ":" + line, count.sum())));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getInstancesByClass() {
+        // Classes redefined at the prompt are reported under one name.
+        Map<String, Long> result = new TreeMap<>();
+        instances.forEach((klass, count) ->
+                result.merge(klass.name, count.sum(), Long::sum));
+        return result;
+    }
+
+    @Override
+    public long getEnvironments() {
+        return environments.sum();
+    }
+
+    @Override
+    public void reset() {
+        calls.clear();
+        statements.clear();
+        instances.clear();
+        environments.reset();
+    }
+
+    // Failures are reported to err, the context's error stream
+    void register(PrintStream err) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            err.println("Could not register execution stats: " +
+                    e.getMessage());
+        }
+    }
+
+    void dump(PrintStream out) {
+        out.println("== calls");
+        getFunctionCalls().forEach((name, count) ->
+                out.println(name + " " + count));
+        out.println("== statements by line");
+        getStatementsByLine().forEach((line, count) ->
+                out.println(line + " " + count));
+        out.println("== instances");
+        getInstancesByClass().forEach((name, count) ->
+                out.println(name + " " + count));
+        out.println("== environments " + getEnvironments());
+    }
+}
@@ -31,6 +31,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = -1;
+    int slot;
   }
 
   static class Binary extends Expr {
@@ -48,6 +50,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    Specialization specialization = Specialization.UNINITIALIZED;
   }
 
   static class Call extends Expr {
@@ -65,6 +68,7 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    boolean isTail;
   }
 
   static class Get extends Expr {
@@ -80,6 +84,7 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+    InlineCache cache;
   }
 
   static class Grouping extends Expr {
@@ -140,6 +145,7 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+    InlineCache cache;
   }
 
   static class Super extends Expr {
@@ -155,6 +161,8 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    int depth;
+    int slot;
   }
 
   static class This extends Expr {
@@ -168,6 +176,7 @@ abstract class Expr {
     }
 
     final Token keyword;
+    int depth;
   }
 
   static class Unary extends Expr {
@@ -196,6 +205,8 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = -1;
+    int slot;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
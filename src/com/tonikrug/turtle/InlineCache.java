@@ -0,0 +1,53 @@
+package com.tonikrug.turtle;
+
+// What a Get or Set node has seen, one entry per shape, most recent first.
+// For a field, instances of shape keep it in slot, and after a Set they
+// have newShape (the same shape unless the Set added the field). A Get
+// that found a method on the class instead caches the method's index in
+// the class's method table, so an entry never keeps a function, or the
+// globals its closure holds, alive. Entries are immutable and a node only
+// ever swaps in a new head, so a node can be shared without ever seeing a
+// half-written entry.
+//
+// A compiled script run in one context after another sees new classes,
+// and so new shapes, every time. A full cache drops its oldest entry to
+// make room, so shapes from earlier runs age out instead of filling it.
+final class InlineCache {
+    static final int MAX_ENTRIES = 4;
+
+    final Shape shape;
+    final int slot;
+    final Shape newShape;
+    final boolean isMethod;
+    final InlineCache next;
+
+    private InlineCache(Shape shape, int slot, Shape newShape,
+                        boolean isMethod, InlineCache next) {
+        this.shape = shape;
+        this.slot = slot;
+        this.newShape = newShape;
+        this.isMethod = isMethod;
+        this.next = next;
+    }
+
+    static InlineCache field(Shape shape, int slot, Shape newShape,
+                             InlineCache next) {
+        return new InlineCache(shape, slot, newShape, false,
+                withRoom(next, MAX_ENTRIES - 1));
+    }
+
+    static InlineCache method(Shape shape, int index, InlineCache next) {
+        return new InlineCache(shape, index, shape, true,
+                withRoom(next, MAX_ENTRIES - 1));
+    }
+
+    // The first count entries of cache, copied if that drops any
+    private static InlineCache withRoom(InlineCache cache, int count) {
+        if (cache == null) return null;
+        if (count == 0) return null;
+        InlineCache rest = withRoom(cache.next, count - 1);
+        if (rest == cache.next) return cache;
+        return new InlineCache(cache.shape, cache.slot, cache.newShape,
+                cache.isMethod, rest);
+    }
+}
@@ -1,18 +1,62 @@
 package com.tonikrug.turtle;
 
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 public class Interpreter implements Expr.Visitor<Object>,
-                                    Stmt.Visitor<Void> {
-
-    private final Map<Expr, Integer> locals = new HashMap<>();
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-
-    Interpreter() {
+                                    Stmt.Visitor<Completion> {
+
+    final Environment globals;
+    // Where this context prints and reports errors. Nothing an Interpreter
+    // runs touches global state, so separate Interpreters can run on
+    // separate threads.
+    final PrintStream out;
+    final ErrorReporter errors;
+    private Environment environment;
+    // Compiles hot functions to JVM bytecode; null unless enabled.
+    JitCompiler jit = null;
+    // The VM this Interpreter's code runs on under --vm; null otherwise.
+    VM vm = null;
+    // Shadow call stack for --profile; null unless enabled.
+    Profiler profiler = null;
+    // Execution counters for --stats; null unless enabled.
+    ExecutionStats stats = null;
+    // Second result channel of evaluateDouble(): when the expression didn't
+    // produce a number, doubleResult is false and the value is left here.
+    private boolean doubleResult;
+    private Object nonDoubleResult;
+    // Set by a return statement for the function call it completes.
+    private Object returnValue;
+
+    Interpreter(PrintStream out, ErrorReporter errors) {
+        this(out, errors, new Environment());
+        defineNatives();
+    }
+
+    private Interpreter(PrintStream out, ErrorReporter errors,
+                        Environment globals) {
+        this.out = out;
+        this.errors = errors;
+        this.globals = globals;
+        this.environment = globals;
+    }
+
+    // An Interpreter for a task on another thread. It shares the globals,
+    // output, errors, JIT and stats, but has frame state of its own, and
+    // under --vm a VM of its own. The profiler's shadow stack belongs to
+    // one thread, so tasks aren't profiled.
+    Interpreter fork() {
+        Interpreter child = new Interpreter(out, errors, globals);
+        child.jit = jit;
+        child.stats = stats;
+        if (vm != null) new VM(child);
+        return child;
+    }
+
+    private void defineNatives() {
         globals.define("clock", new TurtleCallable() {
             @Override
             public int arity() { return 0; }
@@ -24,6 +68,26 @@ public class Interpreter implements Expr.Visitor<Object>,
             @Override
             public String toString() { return "<native fn>"; }
         });
+        // Tasks run functions on virtual threads; channels pass values
+        // between them.
+        globals.define("spawn", new NativeFunction(1, TurtleTask::spawn));
+        globals.define("await", new NativeFunction(1, TurtleTask::await));
+        globals.define("channel",
+                new NativeFunction(1, TurtleChannel::create));
+        globals.define("send", new NativeFunction(2, TurtleChannel::send));
+        globals.define("receive",
+                new NativeFunction(1, TurtleChannel::receive));
+    }
+
+    // Hands over the value of the return statement that just completed.
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    void enableJit() {
+        jit = new JitCompiler();
     }
 
     void interpret(List<Stmt> statements) {
@@ -32,11 +96,12 @@ public class Interpreter implements Expr.Visitor<Object>,
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Turtle.runtimeError(error);
+            if (profiler != null) profiler.reset();
+            errors.runtimeError(error);
         }
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
         if (object instanceof Double) {
             String text = object.toString();
@@ -72,43 +137,43 @@ public class Interpreter implements Expr.Visitor<Object>,
                     "Only instances have fields.");
         }
         Object value = evaluate(expr.value);
-        ((TurtleInstance)object).set(expr.name, value);
+        ((TurtleInstance)object).set(expr, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
         TurtleClass superclass = (TurtleClass)environment.getAt(
-                distance, "super");
+                expr.depth, expr.slot);
+        // "this" is always the only slot of the scope just inside "super".
         TurtleInstance object = (TurtleInstance)environment.getAt(
-                distance - 1, "this");
-        TurtleFunction method = superclass.findMethod(expr.method.lexeme);
+                expr.depth - 1, 0);
+        TurtleFunction method = superclass.findMethod(expr.method.lexeme());
         if (method == null) {
             throw new RuntimeError(expr.method,
-                    "Undefined property '" + expr.method.lexeme + "'.");
-        }
-        if (method == null) {
-            throw new RuntimeError(expr.method,
-                    "Undefined property '" + expr.method.lexeme + "'.");
+                    "Undefined property '" + expr.method.lexeme() + "'.");
         }
         return method.bind(object);
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return environment.getAt(expr.depth, 0);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            double right = evaluateDouble(expr.right);
+            if (!doubleResult) {
+                checkNumberOperand(expr.operator, nonDoubleResult);
+            }
+            return -right;
+        }
         Object right = evaluate(expr.right);
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
         }
         // Unreachable.
         return null;
@@ -116,15 +181,20 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.depth != -1) {
+            return environment.getAt(expr.depth, expr.slot);
+        } else {
+            return globals.get(expr.name);
+        }
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    // Top-level declarations become globals; anything nested was given a
+    // slot by the Resolver, which is the next free one in this frame.
+    private void define(Token name, Object value) {
+        if (environment == globals) {
+            globals.define(name.lexeme(), value);
         } else {
-            return globals.get(name);
+            environment.define(value);
         }
     }
 
@@ -139,13 +209,13 @@ public class Interpreter implements Expr.Visitor<Object>,
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
         return a.equals(b);
@@ -160,136 +230,270 @@ public class Interpreter implements Expr.Visitor<Object>,
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Evaluates expr without boxing intermediate numbers: arithmetic that
+    // has only ever seen numbers, negation and number literals stay
+    // primitive all the way down. Anything else is evaluated normally; if
+    // it isn't a number, doubleResult is cleared and the value is put in
+    // nonDoubleResult for the caller to handle.
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.specialization == Specialization.NUMBER &&
+                    isArithmetic(binary.operator.type)) {
+                double left = evaluateDouble(binary.left);
+                if (!doubleResult) {
+                    Object boxedLeft = nonDoubleResult;
+                    return asDouble(despecialize(binary, boxedLeft,
+                            evaluate(binary.right)));
+                }
+                double right = evaluateDouble(binary.right);
+                if (!doubleResult) {
+                    return asDouble(despecialize(binary, left,
+                            nonDoubleResult));
+                }
+                return arithmetic(binary.operator.type, left, right);
+            }
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == TokenType.MINUS) {
+                double right = evaluateDouble(unary.right);
+                if (!doubleResult) {
+                    checkNumberOperand(unary.operator, nonDoubleResult);
+                }
+                return -right;
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Literal &&
+                ((Expr.Literal)expr).value instanceof Double) {
+            doubleResult = true;
+            return (double)((Expr.Literal)expr).value;
+        }
+        return asDouble(evaluate(expr));
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private double asDouble(Object value) {
+        if (value instanceof Double) {
+            doubleResult = true;
+            return (double)value;
+        }
+        doubleResult = false;
+        nonDoubleResult = value;
+        return 0;
     }
 
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
+    private static boolean isArithmetic(TokenType operator) {
+        return operator == TokenType.MINUS || operator == TokenType.PLUS ||
+                operator == TokenType.SLASH || operator == TokenType.STAR;
+    }
+
+    private Completion execute(Stmt stmt) {
+        if (stats != null) stats.statement(stmt);
+        try {
+            return stmt.accept(this);
+        } catch (RuntimeError error) {
+            error.locate(stmt.file);
+            throw error;
+        }
+    }
+
+    Completion executeBlock(List<Stmt> statements,
+                            Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
             for (Stmt statement : statements) {
-                execute(statement);
+                if (execute(statement) == Completion.RETURN) {
+                    return Completion.RETURN;
+                }
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stats != null) stats.environment();
+        return executeBlock(stmt.statements,
+                new Environment(environment, stmt.slots));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
-            currentClass = ClassType.SUBCLASS;
             superclass = evaluate(stmt.superclass);
             if (!(superclass instanceof TurtleClass)) {
                 throw new RuntimeError(stmt.superclass.name,
                         "Superclass must be a class.");
             }
         }
-        environment.define(stmt.name.lexeme, null);
+        Environment enclosing = environment;
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            if (stats != null) stats.environment();
+            environment = new Environment(environment, 1);
+            environment.define(superclass);
         }
         Map<String, TurtleFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
             TurtleFunction function = new TurtleFunction(method, environment,
-                    method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
-        }
-        TurtleClass klass = new TurtleClass(stmt.name.lexeme,(TurtleClass)superclass, methods);
-        if (superclass != null) {
-            environment = environment.enclosing;
+                    method.name.lexeme().equals("init"));
+            methods.put(method.name.lexeme(), function);
         }
-        environment.assign(stmt.name, klass);
-        return null;
+        TurtleClass klass = new TurtleClass(stmt.name.lexeme(),(TurtleClass)superclass, methods);
+        environment = enclosing;
+        define(stmt.name, klass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
         TurtleFunction function = new TurtleFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        define(stmt.name, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        out.println(stringify(value));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.name, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            if (execute(stmt.body) == Completion.RETURN) {
+                return Completion.RETURN;
+            }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        if (expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, value);
+        } else {
+            globals.assign(expr.name, value);
+        }
         return value;
     }
 
-    Integer distance = locals.get(expr);
-      if (distance != null) {
-        environment.assignAt(distance, expr.name, value);
-    } else {
-        globals.assign(expr.name, value);
-    }
-
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.specialization == Specialization.NUMBER) {
+            // Only the result of the outermost operation gets boxed.
+            double left = evaluateDouble(expr.left);
+            if (!doubleResult) {
+                Object boxedLeft = nonDoubleResult;
+                return despecialize(expr, boxedLeft, evaluate(expr.right));
+            }
+            double right = evaluateDouble(expr.right);
+            if (!doubleResult) {
+                return despecialize(expr, left, nonDoubleResult);
+            }
+            return numberOperation(expr.operator.type, left, right);
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        switch (expr.specialization) {
+            case STRING:
+                if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                break;
+            case GENERIC:
+                return genericOperation(expr, left, right);
+            case UNINITIALIZED:
+                expr.specialization = Specialization.of(
+                        expr.operator.type, left, right);
+                return genericOperation(expr, left, right);
+        }
+        return despecialize(expr, left, right);
+    }
+
+    // The operands stopped matching what this node specialized on.
+    private Object despecialize(Expr.Binary expr, Object left, Object right) {
+        expr.specialization = Specialization.GENERIC;
+        return genericOperation(expr, left, right);
+    }
+
+    private static double arithmetic(TokenType operator,
+                                     double left, double right) {
+        switch (operator) {
+            case MINUS: return left - right;
+            case PLUS: return left + right;
+            case SLASH: return left / right;
+            case STAR: return left * right;
+        }
+        // Unreachable.
+        return 0;
+    }
+
+    private Object numberOperation(TokenType operator,
+                                   double left, double right) {
+        switch (operator) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            case MINUS:
+            case PLUS:
+            case SLASH:
+            case STAR:
+                return arithmetic(operator, left, right);
+            // Same as isEqual(), which compares boxed Doubles with equals().
+            case BANG_EQUAL:
+                return Double.doubleToLongBits(left) !=
+                        Double.doubleToLongBits(right);
+            case EQUAL_EQUAL:
+                return Double.doubleToLongBits(left) ==
+                        Double.doubleToLongBits(right);
+        }
+        // Unreachable.
+        return null;
+    }
+
+    private Object genericOperation(Expr.Binary expr,
+                                    Object left, Object right) {
         switch (expr.operator.type) {
             case GREATER:
                 checkNumberOperands(expr.operator, left, right);
@@ -330,6 +534,7 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) return invoke(expr);
         Object callee = evaluate(expr.callee);
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
@@ -345,14 +550,73 @@ public class Interpreter implements Expr.Visitor<Object>,
                     function.arity() + " arguments but got " +
                     arguments.size() + ".");
         }
-        return function.call(this, arguments);
+        if (profiler != null) profiler.callLine = expr.paren.line;
+        return call(expr, function, arguments);
+    }
+
+    private Object call(Expr.Call expr, TurtleCallable function,
+                        List<Object> arguments) {
+        // A call to a Turtle function in tail position is handed back
+        // unmade, for TurtleFunction.invoke() to make.
+        if (expr.isTail && function instanceof TurtleFunction) {
+            TurtleFunction callee = (TurtleFunction)function;
+            return new TailCall(callee, callee.receiver, arguments);
+        }
+        // Natives don't know where they were called from, so their errors
+        // are given the location of the call here. So are stack overflows,
+        // which deep recursion outside tail position still runs into.
+        try {
+            return function.call(this, arguments);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    // A call of the form object.method(...) runs the method with object as
+    // its receiver, without allocating a bound method for it.
+    private Object invoke(Expr.Call expr) {
+        Expr.Get get = (Expr.Get)expr.callee;
+        Object object = evaluate(get.object);
+        if (!(object instanceof TurtleInstance)) {
+            throw new RuntimeError(get.name,
+                    "Only instances have properties.");
+        }
+        TurtleInstance instance = (TurtleInstance)object;
+        TurtleFunction method = instance.method(get);
+        Object callee = method != null ? method : instance.get(get);
+        List<Object> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+        if (!(callee instanceof TurtleCallable)) {
+            throw new RuntimeError(expr.paren,
+                    "Can only call functions and classes.");
+        }
+        TurtleCallable function = (TurtleCallable)callee;
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    arguments.size() + ".");
+        }
+        if (profiler != null) profiler.callLine = expr.paren.line;
+        if (method == null) return call(expr, function, arguments);
+        if (expr.isTail) {
+            return new TailCall(method, instance, arguments);
+        }
+        try {
+            return method.invoke(this, instance, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof TurtleInstance) {
-            return ((TurtleInstance) object).get(expr.name);
+            return ((TurtleInstance) object).get(expr);
         }
         throw new RuntimeError(expr.name,
                 "Only instances have properties.");
@@ -0,0 +1,20 @@
+package com.tonikrug.turtle;
+
+import java.util.Map;
+
+// Management interface of ExecutionStats, registered by --stats under
+// ExecutionStats.OBJECT_NAME. It has to be public for JMX to accept it.
+public interface InterpreterStatsMXBean {
+    // Keyed by "name:line" of the function's declaration.
+    Map<String, Long> getFunctionCalls();
+
+    // Keyed by "file:line" of the statement, with statements entered at
+    // the prompt under "<prompt>".
+    Map<String, Long> getStatementsByLine();
+
+    Map<String, Long> getInstancesByClass();
+
+    long getEnvironments();
+
+    void reset();
+}
@@ -0,0 +1,9 @@
+package com.tonikrug.turtle;
+
+// Implemented by the hidden classes JitCompiler generates, one per compiled
+// function body. Arguments have already been checked against the arity, and
+// receiver is "this" for a method and null otherwise.
+interface JitCode {
+    Object invoke(Interpreter interpreter, Environment closure,
+                  TurtleInstance receiver, Object[] arguments);
+}
@@ -0,0 +1,504 @@
+package com.tonikrug.turtle;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.tonikrug.turtle.ClassAssembler.*;
+
+// Tiered execution for the Interpreter: once a function has been called
+// HOT_THRESHOLD times its body is translated to JVM bytecode, loaded as a
+// hidden class, and called directly from then on so HotSpot can optimize
+// it like any other Java method.
+//
+// Locals of the compiled function live in JVM local variables instead of
+// Environments, so bodies that declare functions or classes (which could
+// capture those locals) are left to the Interpreter. Operations go through
+// JitRuntime, which keeps the Interpreter's semantics and error messages.
+class JitCompiler {
+    static final int HOT_THRESHOLD = 1000;
+
+    private static final String PACKAGE = "com/tonikrug/turtle/";
+    private static final String RUNTIME = PACKAGE + "JitRuntime";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "L" + PACKAGE + "Token;";
+    private static final String INTERPRETER = "L" + PACKAGE + "Interpreter;";
+    private static final String ENVIRONMENT = "L" + PACKAGE + "Environment;";
+    private static final String INSTANCE = "L" + PACKAGE + "TurtleInstance;";
+    private static final String GET = "L" + PACKAGE + "Expr$Get;";
+    private static final String INVOKE = "(" + INTERPRETER + ENVIRONMENT +
+            INSTANCE + "[" + OBJECT + ")" + OBJECT;
+
+    // Fixed JVM locals of the generated invoke() method.
+    private static final int THIS = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int CLOSURE_LOCAL = 2;
+    private static final int RECEIVER_LOCAL = 3;
+    private static final int ARGUMENTS_LOCAL = 4;
+    private static final int FIRST_LOCAL = 5;
+
+    // Bound methods are fresh TurtleFunctions on every call, so call counts
+    // are kept per declaration, on the declaration itself so they go away
+    // with it.
+    static final class Profile {
+        int calls = 0;
+        // Declarations can be shared by Interpreters on other threads.
+        volatile JitCode code = null;
+        volatile boolean unsupported = false;
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // The compiled body of the function, or null while it should still be
+    // interpreted.
+    JitCode compiledCode(TurtleFunction function) {
+        Profile profile = function.declaration.profile;
+        if (profile == null) {
+            profile = new Profile();
+            function.declaration.profile = profile;
+        }
+        if (profile.code != null || profile.unsupported) return profile.code;
+        if (++profile.calls < HOT_THRESHOLD) return null;
+        try {
+            profile.code = compile(function.declaration,
+                    function.isInitializer);
+        } catch (Unsupported e) {
+            profile.unsupported = true;
+        }
+        return profile.code;
+    }
+
+    private JitCode compile(Stmt.Function declaration, boolean isInitializer) {
+        String className = PACKAGE + "TurtleJit$" + declaration.name.lexeme();
+        ClassAssembler assembler = new ClassAssembler(className,
+                "java/lang/Object", PACKAGE + "JitCode");
+        assembler.field(ACC_PRIVATE | ACC_FINAL, "k", "[" + OBJECT);
+
+        Code init = new Code();
+        init.local(ALOAD, THIS, 1);
+        init.opShort(INVOKESPECIAL, assembler.methodRef(
+                "java/lang/Object", "<init>", "()V"), -1);
+        init.local(ALOAD, THIS, 1);
+        init.local(ALOAD, 1, 1);
+        init.opShort(PUTFIELD,
+                assembler.fieldRef(className, "k", "[" + OBJECT), -2);
+        init.op(RETURN, 0);
+        assembler.method(0, "<init>", "([" + OBJECT + ")V", init);
+
+        Translator translator = new Translator(assembler, className,
+                isInitializer);
+        Code invoke = translator.translate(declaration);
+        assembler.method(ACC_PUBLIC, "invoke", INVOKE, invoke);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(assembler.toByteArray(), true);
+            return (JitCode)lookup.findConstructor(lookup.lookupClass(),
+                            MethodType.methodType(void.class, Object[].class))
+                    .invoke((Object)translator.constants.toArray());
+        } catch (Throwable e) {
+            // A class the JVM refuses is a bug here, not in the script, so
+            // keep interpreting rather than failing the program.
+            throw new Unsupported();
+        }
+    }
+
+    // Emits the body of invoke() for one function declaration.
+    private final class Translator implements Expr.Visitor<Void>,
+                                              Stmt.Visitor<Void> {
+        private final ClassAssembler assembler;
+        private final String className;
+        private final boolean isInitializer;
+        private final Code code = new Code();
+        private final List<Label> labels = new ArrayList<>();
+        final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndexes =
+                new IdentityHashMap<>();
+        // JVM local holding slot 0 of each scope, innermost last.
+        private final List<Integer> scopes = new ArrayList<>();
+        private int nextLocal = FIRST_LOCAL;
+
+        Translator(ClassAssembler assembler, String className,
+                   boolean isInitializer) {
+            this.assembler = assembler;
+            this.className = className;
+            this.isInitializer = isInitializer;
+        }
+
+        Code translate(Stmt.Function declaration) {
+            code.maxLocals = FIRST_LOCAL;
+            scopes.add(FIRST_LOCAL);
+            if (declaration.isMethod) {
+                code.local(ALOAD, RECEIVER_LOCAL, 1);
+                code.local(ASTORE, nextLocal++, -1);
+            }
+            for (int i = 0; i < declaration.params.size(); i++) {
+                code.local(ALOAD, ARGUMENTS_LOCAL, 1);
+                code.pushInt(i);
+                code.op(AALOAD, -1);
+                code.local(ASTORE, nextLocal++, -1);
+            }
+            for (Stmt statement : declaration.body) {
+                statement.accept(this);
+            }
+            emitReturn(null);
+            code.resolve(labels);
+            if (code.length() > Short.MAX_VALUE) throw new Unsupported();
+            return code;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            int base = nextLocal;
+            scopes.add(base);
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            scopes.remove(scopes.size() - 1);
+            nextLocal = base;
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            code.op(POP, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            Label elseBranch = label();
+            Label end = label();
+            condition(stmt.condition, elseBranch);
+            stmt.thenBranch.accept(this);
+            code.jump(GOTO, end, 0);
+            code.bind(elseBranch);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            code.bind(end);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            invokeRuntime("print", "(" + OBJECT + INTERPRETER + ")V", -2);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            emitReturn(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) {
+                stmt.initializer.accept(this);
+            } else {
+                code.op(ACONST_NULL, 1);
+            }
+            if (nextLocal > 255) throw new Unsupported();
+            code.local(ASTORE, nextLocal++, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            Label start = label();
+            Label end = label();
+            code.bind(start);
+            condition(stmt.condition, end);
+            stmt.body.accept(this);
+            code.jump(GOTO, start, 0);
+            code.bind(end);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            if (expr.depth == -1) {
+                code.local(ALOAD, INTERPRETER_LOCAL, 1);
+                token(expr.name);
+                expr.value.accept(this);
+                invokeRuntime("assignGlobal",
+                        "(" + INTERPRETER + TOKEN + OBJECT + ")" + OBJECT, -2);
+            } else if (expr.depth < scopes.size()) {
+                expr.value.accept(this);
+                code.op(DUP, 1);
+                code.local(ASTORE, local(expr.depth, expr.slot), -1);
+            } else {
+                code.local(ALOAD, CLOSURE_LOCAL, 1);
+                code.pushInt(expr.depth - scopes.size());
+                code.pushInt(expr.slot);
+                expr.value.accept(this);
+                invokeRuntime("assignAt",
+                        "(" + ENVIRONMENT + "II" + OBJECT + ")" + OBJECT, -3);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            String operation;
+            switch (expr.operator.type) {
+                case BANG_EQUAL:
+                    invokeRuntime("notEqual",
+                            "(" + OBJECT + OBJECT + ")" + OBJECT, -1);
+                    return null;
+                case EQUAL_EQUAL:
+                    invokeRuntime("equal",
+                            "(" + OBJECT + OBJECT + ")" + OBJECT, -1);
+                    return null;
+                case GREATER: operation = "greater"; break;
+                case GREATER_EQUAL: operation = "greaterEqual"; break;
+                case LESS: operation = "less"; break;
+                case LESS_EQUAL: operation = "lessEqual"; break;
+                case MINUS: operation = "subtract"; break;
+                case PLUS: operation = "add"; break;
+                case SLASH: operation = "divide"; break;
+                case STAR: operation = "multiply"; break;
+                default: throw new Unsupported();
+            }
+            token(expr.operator);
+            invokeRuntime(operation,
+                    "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT, -2);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            if (expr.callee instanceof Expr.Get) {
+                // Leaves the receiver under the callee for invoke().
+                Expr.Get get = (Expr.Get)expr.callee;
+                get.object.accept(this);
+                code.op(DUP, 1);
+                node(get, "Expr$Get");
+                invokeRuntime("method", "(" + OBJECT + GET + ")" + OBJECT, -1);
+                arguments(expr);
+                invokeRuntime(expr.isTail ? "tailInvoke" : "invoke",
+                        "(" + OBJECT + OBJECT + "[" + OBJECT +
+                        INTERPRETER + TOKEN + ")" + OBJECT, -4);
+                return null;
+            }
+            expr.callee.accept(this);
+            arguments(expr);
+            invokeRuntime(expr.isTail ? "tailCall" : "call",
+                    "(" + OBJECT + "[" + OBJECT +
+                    INTERPRETER + TOKEN + ")" + OBJECT, -3);
+            return null;
+        }
+
+        // Pushes the argument array, the interpreter and the paren token.
+        private void arguments(Expr.Call expr) {
+            code.pushInt(expr.arguments.size());
+            code.opShort(ANEWARRAY, assembler.classRef("java/lang/Object"), 0);
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                code.op(DUP, 1);
+                code.pushInt(i);
+                expr.arguments.get(i).accept(this);
+                code.op(AASTORE, -3);
+            }
+            code.local(ALOAD, INTERPRETER_LOCAL, 1);
+            token(expr.paren);
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expr.object.accept(this);
+            node(expr, "Expr$Get");
+            invokeRuntime("getProperty", "(" + OBJECT + GET + ")" + OBJECT, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            if (expr.value == null) {
+                code.op(ACONST_NULL, 1);
+            } else if (expr.value instanceof Boolean) {
+                code.opShort(GETSTATIC, assembler.fieldRef("java/lang/Boolean",
+                        (Boolean)expr.value ? "TRUE" : "FALSE",
+                        "Ljava/lang/Boolean;"), 1);
+            } else {
+                constant(expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            Label end = label();
+            expr.left.accept(this);
+            code.op(DUP, 1);
+            invokeRuntime("isTruthy", "(" + OBJECT + ")Z", 0);
+            // "or" keeps a truthy left operand, "and" a falsey one.
+            code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ,
+                    end, -1);
+            code.op(POP, -1);
+            expr.right.accept(this);
+            code.bind(end);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            expr.object.accept(this);
+            token(expr.name);
+            invokeRuntime("checkInstance",
+                    "(" + OBJECT + TOKEN + ")" + OBJECT, -1);
+            node(expr, "Expr$Set");
+            expr.value.accept(this);
+            invokeRuntime("setProperty",
+                    "(" + OBJECT + "L" + PACKAGE + "Expr$Set;" + OBJECT + ")" +
+                    OBJECT, -2);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            // "super" is never declared inside a function body.
+            code.local(ALOAD, CLOSURE_LOCAL, 1);
+            code.pushInt(expr.depth - scopes.size());
+            code.pushInt(expr.slot);
+            token(expr.method);
+            code.local(ALOAD, RECEIVER_LOCAL, 1);
+            invokeRuntime("superMethod", "(" + ENVIRONMENT + "II" + TOKEN +
+                    INSTANCE + ")" + OBJECT, -4);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            variable(expr.keyword, expr.depth, 0);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            if (expr.operator.type == TokenType.BANG) {
+                invokeRuntime("not", "(" + OBJECT + ")" + OBJECT, 0);
+            } else {
+                token(expr.operator);
+                invokeRuntime("negate", "(" + OBJECT + TOKEN + ")" + OBJECT, -1);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            variable(expr.name, expr.depth, expr.slot);
+            return null;
+        }
+
+        private void variable(Token name, int depth, int slot) {
+            if (depth == -1) {
+                code.local(ALOAD, INTERPRETER_LOCAL, 1);
+                token(name);
+                invokeRuntime("getGlobal",
+                        "(" + INTERPRETER + TOKEN + ")" + OBJECT, -1);
+            } else if (depth < scopes.size()) {
+                code.local(ALOAD, local(depth, slot), 1);
+            } else {
+                closureVariable(depth - scopes.size(), slot);
+            }
+        }
+
+        private void closureVariable(int depth, int slot) {
+            code.local(ALOAD, CLOSURE_LOCAL, 1);
+            code.pushInt(depth);
+            code.pushInt(slot);
+            code.opShort(INVOKEVIRTUAL, assembler.methodRef(
+                    PACKAGE + "Environment", "getAt", "(II)" + OBJECT), -2);
+        }
+
+        private int local(int depth, int slot) {
+            return scopes.get(scopes.size() - 1 - depth) + slot;
+        }
+
+        private void emitReturn(Expr value) {
+            if (isInitializer) {
+                // Initializers always hand back "this".
+                code.local(ALOAD, RECEIVER_LOCAL, 1);
+            } else if (value != null) {
+                value.accept(this);
+            } else {
+                code.op(ACONST_NULL, 1);
+            }
+            code.op(ARETURN, -1);
+        }
+
+        // Jumps to target if the condition is falsey.
+        private void condition(Expr condition, Label target) {
+            condition.accept(this);
+            invokeRuntime("isTruthy", "(" + OBJECT + ")Z", 0);
+            code.jump(IFEQ, target, -1);
+        }
+
+        private void token(Token token) {
+            constant(token);
+            code.opShort(CHECKCAST, assembler.classRef(PACKAGE + "Token"), 0);
+        }
+
+        // Get and Set nodes are passed along so the runtime can use their
+        // inline caches.
+        private void node(Expr expr, String className) {
+            constant(expr);
+            code.opShort(CHECKCAST, assembler.classRef(PACKAGE + className), 0);
+        }
+
+        private void constant(Object value) {
+            Integer index = constantIndexes.get(value);
+            if (index == null) {
+                index = constants.size();
+                if (index > Short.MAX_VALUE) throw new Unsupported();
+                constants.add(value);
+                constantIndexes.put(value, index);
+            }
+            code.local(ALOAD, THIS, 1);
+            code.opShort(GETFIELD,
+                    assembler.fieldRef(className, "k", "[" + OBJECT), 0);
+            code.pushInt(index);
+            code.op(AALOAD, -1);
+        }
+
+        private void invokeRuntime(String name, String descriptor,
+                                   int stackDelta) {
+            code.opShort(INVOKESTATIC,
+                    assembler.methodRef(RUNTIME, name, descriptor), stackDelta);
+        }
+
+        private Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.tonikrug.turtle;
+
+import java.util.Arrays;
+
+// Operations called from JIT-compiled code. Each one matches the behavior
+// and error messages of the corresponding Interpreter visit method, so a
+// compiled function is indistinguishable from an interpreted one.
+final class JitRuntime {
+    private JitRuntime() {}
+
+    static boolean isTruthy(Object object) {
+        return Interpreter.isTruthy(object);
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String)left + (String)right;
+        }
+        throw new RuntimeError(operator,
+                "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return -(double)right;
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    static Object getGlobal(Interpreter interpreter, Token name) {
+        return interpreter.globals.get(name);
+    }
+
+    static Object assignGlobal(Interpreter interpreter, Token name,
+                               Object value) {
+        interpreter.globals.assign(name, value);
+        return value;
+    }
+
+    static Object assignAt(Environment environment, int depth, int slot,
+                           Object value) {
+        environment.assignAt(depth, slot, value);
+        return value;
+    }
+
+    static Object getProperty(Object object, Expr.Get expr) {
+        if (object instanceof TurtleInstance) {
+            return ((TurtleInstance)object).get(expr);
+        }
+        throw new RuntimeError(expr.name, "Only instances have properties.");
+    }
+
+    static Object checkInstance(Object object, Token name) {
+        if (!(object instanceof TurtleInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return object;
+    }
+
+    static Object setProperty(Object object, Expr.Set expr, Object value) {
+        ((TurtleInstance)object).set(expr, value);
+        return value;
+    }
+
+    static Object superMethod(Environment environment, int depth, int slot,
+                              Token method, TurtleInstance object) {
+        TurtleClass superclass = (TurtleClass)environment.getAt(depth, slot);
+        TurtleFunction function = superclass.findMethod(method.lexeme());
+        if (function == null) {
+            throw new RuntimeError(method,
+                    "Undefined property '" + method.lexeme() + "'.");
+        }
+        return function.bind(object);
+    }
+
+    static Object call(Object callee, Object[] arguments,
+                       Interpreter interpreter, Token paren) {
+        if (!(callee instanceof TurtleCallable)) {
+            throw new RuntimeError(paren,
+                    "Can only call functions and classes.");
+        }
+        TurtleCallable function = (TurtleCallable)callee;
+        checkArity(function, arguments, paren);
+        if (interpreter.profiler != null) {
+            interpreter.profiler.callLine = paren.line;
+        }
+        try {
+            return function.call(interpreter, Arrays.asList(arguments));
+        } catch (NativeError error) {
+            throw new RuntimeError(paren, error.getMessage());
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+    }
+
+    // call() in tail position, which hands a Turtle function back unmade
+    // the way the Interpreter does.
+    static Object tailCall(Object callee, Object[] arguments,
+                           Interpreter interpreter, Token paren) {
+        if (callee instanceof TurtleFunction) {
+            TurtleFunction function = (TurtleFunction)callee;
+            checkArity(function, arguments, paren);
+            return new TailCall(function, function.receiver,
+                    Arrays.asList(arguments));
+        }
+        return call(callee, arguments, interpreter, paren);
+    }
+
+    // The callee of object.name(...): the unbound method when there is one,
+    // otherwise whatever the property holds.
+    static Object method(Object object, Expr.Get expr) {
+        if (!(object instanceof TurtleInstance)) {
+            throw new RuntimeError(expr.name,
+                    "Only instances have properties.");
+        }
+        TurtleInstance instance = (TurtleInstance)object;
+        TurtleFunction method = instance.method(expr);
+        if (method != null) return method;
+        return instance.get(expr);
+    }
+
+    static Object invoke(Object receiver, Object callee, Object[] arguments,
+                         Interpreter interpreter, Token paren) {
+        if (callee instanceof TurtleFunction) {
+            TurtleFunction method = (TurtleFunction)callee;
+            // Methods only escape bound, so an unbound one came from method().
+            if (method.declaration.isMethod && method.receiver == null) {
+                checkArity(method, arguments, paren);
+                if (interpreter.profiler != null) {
+                    interpreter.profiler.callLine = paren.line;
+                }
+                try {
+                    return method.invoke(interpreter,
+                            (TurtleInstance)receiver, Arrays.asList(arguments));
+                } catch (StackOverflowError error) {
+                    throw new RuntimeError(paren, "Stack overflow.");
+                }
+            }
+        }
+        return call(callee, arguments, interpreter, paren);
+    }
+
+    static Object tailInvoke(Object receiver, Object callee,
+                             Object[] arguments, Interpreter interpreter,
+                             Token paren) {
+        if (callee instanceof TurtleFunction) {
+            TurtleFunction method = (TurtleFunction)callee;
+            checkArity(method, arguments, paren);
+            TurtleInstance instance = method.receiver;
+            if (method.declaration.isMethod && instance == null) {
+                instance = (TurtleInstance)receiver;
+            }
+            return new TailCall(method, instance, Arrays.asList(arguments));
+        }
+        return invoke(receiver, callee, arguments, interpreter, paren);
+    }
+
+    static void print(Object value, Interpreter interpreter) {
+        interpreter.out.println(Interpreter.stringify(value));
+    }
+
+    private static void checkArity(TurtleCallable function,
+                                   Object[] arguments, Token paren) {
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    arguments.length + ".");
+        }
+    }
+
+    private static void checkNumberOperands(Token operator,
+                                            Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+}
@@ -0,0 +1,79 @@
+package com.tonikrug.turtle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A script file mapped into memory and read by the Scanner in place, without
+// first decoding it into a String. charAt() simply returns each byte as a
+// char, which is only right for ASCII, so text() hands the Scanner a decoded
+// String instead when the file has anything else in it. Either way the text
+// of a lexeme, string literals included, is decoded as UTF-8 when the
+// Scanner asks for it.
+final class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    static MappedSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            return new MappedSource(bytes, 0, bytes.limit());
+        }
+    }
+
+    // The raw bytes of this source
+    ByteBuffer bytes() {
+        return bytes.slice(offset, length);
+    }
+
+    // The source for the Scanner: this if it's all ASCII, so that each
+    // byte is a character, otherwise the source decoded as UTF-8.
+    CharSequence text() {
+        int i = 0;
+        // Eight bytes at a time, checking their high bits together
+        for (; i + 8 <= length; i += 8) {
+            if ((bytes.getLong(offset + i) & 0x8080808080808080L) != 0) {
+                return toString();
+            }
+        }
+        for (; i < length; i++) {
+            if (bytes.get(offset + i) < 0) return toString();
+        }
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char)(bytes.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new MappedSource(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] text = new byte[length];
+        bytes.get(offset, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
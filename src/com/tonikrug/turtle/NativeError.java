@@ -0,0 +1,9 @@
+package com.tonikrug.turtle;
+
+// Thrown by natives, which don't know where they were called from. The
+// engine that made the call turns it into a RuntimeError at the call.
+class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message);
+    }
+}
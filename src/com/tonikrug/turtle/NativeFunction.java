@@ -0,0 +1,34 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+
+// A native function whose body is a Java method, for natives that need
+// more than a line or two.
+final class NativeFunction implements TurtleCallable {
+    interface Body {
+        Object call(Interpreter interpreter, List<Object> arguments);
+    }
+
+    private final int arity;
+    private final Body body;
+
+    NativeFunction(int arity, Body body) {
+        this.arity = arity;
+        this.body = body;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return body.call(interpreter, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
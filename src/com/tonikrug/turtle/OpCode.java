@@ -0,0 +1,62 @@
+package com.tonikrug.turtle;
+
+// Instruction set of the bytecode VM. Operands follow the opcode inline;
+// "u8" and "u16" operands are unsigned and u16 is big-endian.
+final class OpCode {
+    static final byte CONSTANT      = 0;  // u16 constant
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    // Locals nothing captures are slots of the frame on the stack; the
+    // captured ones are in Environments.
+    static final byte GET_LOCAL     = 5;  // u16 stack slot
+    static final byte SET_LOCAL     = 6;  // u16 stack slot
+    static final byte DEFINE_CAPTURED = 7;
+    static final byte GET_GLOBAL    = 8;  // u16 name token
+    static final byte SET_GLOBAL    = 9;  // u16 name token
+    static final byte DEFINE_GLOBAL = 10; // u16 name token
+    static final byte GET_PROPERTY  = 11; // u16 Expr.Get node
+    static final byte CHECK_INSTANCE = 12; // u16 name token
+    static final byte SET_PROPERTY  = 13; // u16 Expr.Set node
+    static final byte GET_SUPER     = 14; // u16 method token
+    static final byte EQUAL         = 15;
+    static final byte GREATER       = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS          = 18;
+    static final byte LESS_EQUAL    = 19;
+    static final byte ADD           = 20;
+    static final byte SUBTRACT      = 21;
+    static final byte MULTIPLY      = 22;
+    static final byte DIVIDE        = 23;
+    static final byte NOT           = 24;
+    static final byte NEGATE        = 25;
+    static final byte PRINT         = 26;
+    static final byte JUMP          = 27; // u16 forward offset
+    static final byte JUMP_IF_FALSE = 28; // u16 forward offset
+    static final byte LOOP          = 29; // u16 backward offset
+    static final byte CALL          = 30; // u8 argument count
+    static final byte FUNCTION      = 31; // u16 chunk constant
+    static final byte INHERIT       = 32;
+    static final byte CLASS         = 33; // u16 name token, u8 method count, u8 has superclass
+    static final byte PUSH_SCOPE    = 34; // u16 slot count
+    static final byte POP_SCOPE     = 35;
+    static final byte RETURN        = 36;
+    // object.name(...) compiles to GET_METHOD, the arguments, then INVOKE,
+    // so a method is called with its receiver instead of being bound.
+    static final byte GET_METHOD    = 37; // u16 Expr.Get node
+    static final byte INVOKE        = 38; // u8 argument count
+    // CALL and INVOKE for a call in tail position, which takes over the
+    // caller's frame when it pushes one.
+    static final byte TAIL_CALL     = 39; // u8 argument count
+    static final byte TAIL_INVOKE   = 40; // u8 argument count
+    static final byte GET_CAPTURED  = 41; // u16 depth, u16 slot
+    static final byte SET_CAPTURED  = 42; // u16 depth, u16 slot
+    static final byte POP_N         = 43; // u16 count
+    // SET_LOCAL then POP, for an assignment used as a statement.
+    static final byte STORE_LOCAL   = 44; // u16 stack slot
+    // JUMP_IF_FALSE that pops the condition, for if and while.
+    static final byte POP_JUMP_IF_FALSE = 45; // u16 forward offset
+
+    private OpCode() {}
+}
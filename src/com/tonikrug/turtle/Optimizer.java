@@ -0,0 +1,294 @@
+package com.tonikrug.turtle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Simplifies resolved statements before they run. An operator whose
+// operands are all literals is replaced by its result, and an if or while
+// whose condition is a literal loses the code that can never run. An
+// operation that would fail, like adding a number to a string, is left as
+// it is so it still fails when it's reached.
+//
+// Nodes are never changed. A node with a simplified child is rebuilt,
+// carrying over what the Resolver stored on it, and any other node is
+// returned as it is.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            // Statements that can never run are dropped.
+            if (result != null) optimized.add(result);
+            if (result != statement) changed = true;
+        }
+        return changed ? optimized : statements;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // A statement that has to be there even if nothing is left to run, like
+    // the body of a loop.
+    private Stmt required(Stmt stmt, Stmt original) {
+        if (stmt != null) return stmt;
+        Stmt.Block block = at(new Stmt.Block(new ArrayList<>()), original);
+        block.captured = new boolean[0];
+        return block;
+    }
+
+    private static <T extends Stmt> T at(T stmt, Stmt original) {
+        stmt.line = original.line;
+        stmt.file = original.file;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = at(new Stmt.Block(statements), stmt);
+        block.slots = stmt.slots;
+        block.captured = stmt.captured;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function optimized = (Stmt.Function)optimize(method);
+            methods.add(optimized);
+            if (optimized != method) changed = true;
+        }
+        if (!changed) return stmt;
+        return at(new Stmt.Class(stmt.name, stmt.superclass, methods), stmt);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return at(new Stmt.Expression(expression), stmt);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = optimize(stmt.body);
+        if (body == stmt.body) return stmt;
+        Stmt.Function function =
+                at(new Stmt.Function(stmt.name, stmt.params, body), stmt);
+        function.slots = stmt.slots;
+        function.captured = stmt.captured;
+        function.isMethod = stmt.isMethod;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            // Only one of the branches can ever run.
+            Object value = ((Expr.Literal)condition).value;
+            Stmt branch = Interpreter.isTruthy(value)
+                    ? stmt.thenBranch : stmt.elseBranch;
+            return branch == null ? null : optimize(branch);
+        }
+        Stmt thenBranch = required(optimize(stmt.thenBranch), stmt);
+        Stmt elseBranch = stmt.elseBranch == null
+                ? null : optimize(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+                elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return at(new Stmt.If(condition, thenBranch, elseBranch), stmt);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return at(new Stmt.Print(expression), stmt);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return at(new Stmt.Return(stmt.keyword, value), stmt);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return at(new Stmt.Var(stmt.name, initializer), stmt);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal &&
+                !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            // The body never runs.
+            return null;
+        }
+        Stmt body = required(optimize(stmt.body), stmt);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return at(new Stmt.While(condition, body), stmt);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = fold(expr.operator.type,
+                    ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+            if (value != null) return new Expr.Literal(value);
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // The result of a binary operator on two literal values, or null if it
+    // would be a runtime error. No binary operator evaluates to nil.
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                break;
+        }
+        if (!(left instanceof Double) || !(right instanceof Double)) {
+            return null;
+        }
+        double a = (double)left;
+        double b = (double)right;
+        switch (operator) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            case MINUS: return a - b;
+            case PLUS: return a + b;
+            case SLASH: return a / b;
+            case STAR: return a * b;
+        }
+        // Unreachable.
+        return null;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            arguments.add(optimized);
+            if (optimized != argument) changed = true;
+        }
+        if (!changed) return expr;
+        Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+        call.isTail = expr.isTail;
+        return call;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Parentheses only matter to the Parser.
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            // The left operand decides whether the right one is evaluated,
+            // and is the result if it isn't.
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            boolean shortCircuits = expr.operator.type == TokenType.OR
+                    ? truthy : !truthy;
+            return shortCircuits ? left : right;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            switch (expr.operator.type) {
+                case BANG:
+                    return new Expr.Literal(!Interpreter.isTruthy(value));
+                case MINUS:
+                    if (value instanceof Double) {
+                        return new Expr.Literal(-(double)value);
+                    }
+                    break;
+            }
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
@@ -3,6 +3,7 @@ package com.tonikrug.turtle;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
 import static com.tonikrug.turtle.TokenType.*;
 
@@ -20,11 +21,20 @@ class Parser {
     }
 
     private Stmt declaration() {
+        int line = peek().line;
         try {
-            if (match(CLASS)) return classDeclaration();
-            if (match(FUN)) return function("function");
-            if (match(VAR)) return varDeclaration();
-            return statement();
+            Stmt stmt;
+            if (match(CLASS)) {
+                stmt = classDeclaration();
+            } else if (match(FUN)) {
+                stmt = function("function");
+            } else if (match(VAR)) {
+                stmt = varDeclaration();
+            } else {
+                return statement();
+            }
+            locate(stmt, line);
+            return stmt;
         } catch (ParseError error) {
             synchronize();
             return null;
@@ -47,26 +57,45 @@ class Parser {
         return new Stmt.Class(name, superclass, methods);
     }
 
-    private Stmt statement(){
-        if (match(FOR)) return forStatement();
-        if (match(IF)) return ifStatement();
-        if (match(PRINT)) return printStatement();
-        if (match(RETURN)) return returnStatement();
-        if (match(WHILE)) return whileStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
+    private Stmt statement() {
+        int line = peek().line;
+        Stmt stmt;
+        if (match(FOR)) {
+            stmt = forStatement();
+        } else if (match(IF)) {
+            stmt = ifStatement();
+        } else if (match(PRINT)) {
+            stmt = printStatement();
+        } else if (match(RETURN)) {
+            stmt = returnStatement();
+        } else if (match(WHILE)) {
+            stmt = whileStatement();
+        } else if (match(LEFT_BRACE)) {
+            stmt = new Stmt.Block(block());
+        } else {
+            stmt = expressionStatement();
+        }
+        locate(stmt, line);
+        return stmt;
+    }
 
-        return expressionStatement();
+    private void locate(Stmt stmt, int line) {
+        stmt.line = line;
+        stmt.file = file;
     }
 
     private Stmt forStatement() {
+        int line = previous().line;
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
         Stmt initializer;
         if (match(SEMICOLON)) {
             initializer = null;
         } else if (match(VAR)) {
             initializer = varDeclaration();
+            locate(initializer, line);
         } else {
             initializer = expressionStatement();
+            locate(initializer, line);
         }
         Expr condition = null;
         if (!check(SEMICOLON)) {
@@ -74,19 +103,21 @@ class Parser {
         }
         consume(SEMICOLON, "Expect ';' after loop condition.");
         Expr increment = null;
+        int incrementLine = peek().line;
         if (!check(RIGHT_PAREN)) {
             increment = expression();
         }
         consume(RIGHT_PAREN, "Expect ')' after for clauses.");
         Stmt body = statement();
         if (increment != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
+            Stmt step = new Stmt.Expression(increment);
+            locate(step, incrementLine);
+            body = new Stmt.Block(Arrays.asList(body, step));
+            locate(body, line);
         }
         if (condition == null) condition = new Expr.Literal(true);
         body = new Stmt.While(condition, body);
+        locate(body, line);
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
         }
@@ -336,8 +367,11 @@ class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+        if (!isAtEnd()) {
+            previous = current;
+            current = tokens.get();
+        }
+        return previous;
     }
 
     private boolean isAtEnd() {
@@ -345,15 +379,15 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private ParseError error(Token token, String message) {
-        Turtle.error(token, message);
+        errors.error(file, token, message);
         return new ParseError();
     }
 
@@ -377,10 +411,33 @@ class Parser {
     }
 
     private static class ParseError extends RuntimeException{}
-    private final List<Token> tokens;
-    private int current = 0;
-    Parser(List<Token> tokens) {
+    // Tokens are pulled one at a time, and only the current one and the
+    // one before it are kept.
+    private final Supplier<Token> tokens;
+    private final ErrorReporter errors;
+    private Token current;
+    private Token previous = null;
+    // The script the tokens come from, or null if they aren't from a file.
+    private final String file;
+    Parser(Scanner scanner, ErrorReporter errors) {
+        this(scanner, null, errors);
+    }
+
+    Parser(Scanner scanner, String file, ErrorReporter errors) {
+        this(scanner::nextToken, file, errors);
+    }
+
+    // The list must end with an EOF token.
+    Parser(List<Token> tokens, ErrorReporter errors) {
+        this(tokens.iterator()::next, null, errors);
+    }
+
+    private Parser(Supplier<Token> tokens, String file,
+                   ErrorReporter errors) {
         this.tokens = tokens;
+        this.file = file;
+        this.errors = errors;
+        this.current = tokens.get();
     }
 }
 
@@ -0,0 +1,106 @@
+package com.tonikrug.turtle;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+// Sampling profiler enabled by --profile. The engines keep a shadow stack of
+// the Turtle functions being run, each with the line it was called from, and
+// a background thread records that stack every SAMPLE_INTERVAL_MS. The
+// result is written in the collapsed-stack format flame graph tools read:
+// one line per distinct stack, frames separated by ';', then a count.
+//
+// The sampler reads the stack without locking, so a sample taken mid-call
+// can be slightly off. That's fine for a statistical profile and keeps the
+// cost of a call down to a few array stores.
+final class Profiler {
+    private static final long SAMPLE_INTERVAL_MS = 1;
+
+    private String[] names = new String[64];
+    private int[] lines = new int[64];
+    private volatile int depth = 0;
+    // Set by the caller just before entering a function.
+    int callLine = 0;
+
+    private final Map<String, Long> samples = new HashMap<>();
+    private final Thread sampler;
+    private volatile boolean running = true;
+
+    Profiler() {
+        sampler = new Thread(this::sampleLoop, "turtle-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void enter(String name) {
+        int top = depth;
+        if (top == names.length) {
+            String[] grownNames = new String[top * 2];
+            int[] grownLines = new int[top * 2];
+            System.arraycopy(names, 0, grownNames, 0, top);
+            System.arraycopy(lines, 0, grownLines, 0, top);
+            names = grownNames;
+            lines = grownLines;
+        }
+        names[top] = name;
+        lines[top] = callLine;
+        depth = top + 1;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    // A runtime error abandons every call in progress.
+    void reset() {
+        depth = 0;
+    }
+
+    private void sampleLoop() {
+        StringBuilder stack = new StringBuilder();
+        while (running) {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            stack.setLength(0);
+            stack.append("<script>");
+            String[] names = this.names;
+            int[] lines = this.lines;
+            int top = Math.min(depth, names.length);
+            for (int i = 0; i < top; i++) {
+                stack.append(';').append(names[i])
+                        .append(':').append(lines[i]);
+            }
+            synchronized (samples) {
+                samples.merge(stack.toString(), 1L, Long::sum);
+            }
+        }
+    }
+
+    void stop() {
+        running = false;
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void write(Path path) throws IOException {
+        try (PrintWriter out = new PrintWriter(
+                Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            synchronized (samples) {
+                for (Map.Entry<String, Long> sample : samples.entrySet()) {
+                    out.println(sample.getKey() + " " + sample.getValue());
+                }
+            }
+        }
+    }
+}
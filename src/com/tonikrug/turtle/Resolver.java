@@ -5,12 +5,13 @@ import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    private final ErrorReporter errors;
     private FunctionType currentFunction = FunctionType.NONE;
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    // How many functions the code being resolved is nested in.
+    private int functionDepth = 0;
+    // The script of the statement being resolved, for error messages.
+    private String file = null;
 
     private enum FunctionType {
         NONE,
@@ -21,10 +22,29 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private enum ClassType {
         NONE,
-        CLASS
+        CLASS,
+        SUBCLASS
+    }
+
+    // A variable declared in a local scope and the frame slot it lives in.
+    // It's captured when a function nested in the one declaring it uses it.
+    private static class Local {
+        final int slot;
+        final int functionDepth;
+        boolean defined = false;
+        boolean captured = false;
+
+        Local(int slot, int functionDepth) {
+            this.slot = slot;
+            this.functionDepth = functionDepth;
+        }
     }
     private ClassType currentClass = ClassType.NONE;
 
+    Resolver(ErrorReporter errors) {
+        this.errors = errors;
+    }
+
     void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
@@ -35,6 +55,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
+        stmt.slots = scopes.peek().size();
+        stmt.captured = captured(scopes.peek());
         endScope();
         return null;
     }
@@ -48,31 +70,27 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         define(stmt.name);
 
         if (stmt.superclass != null &&
-                stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Turtle.error(stmt.superclass.name,
+                stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
+            errors.error(file, stmt.superclass.name,
                     "A class can't inherit from itself.");
         }
         if (stmt.superclass != null) {
             currentClass = ClassType.SUBCLASS;
-        }
             resolve(stmt.superclass);
+        }
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            defineImplicit("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.lexeme().equals("init")) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass != null) endScope();
         currentClass = enclosingClass;
         return null;
@@ -109,15 +127,26 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Turtle.error(stmt.keyword, "Can't return from top-level code.");
+            errors.error(file, stmt.keyword,
+                    "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Turtle.error(stmt.keyword,
+                errors.error(file, stmt.keyword,
                         "Can't return a value from an initializer.");
         }
             resolve(stmt.value);
+            // A call whose value is returned as it is doesn't need the
+            // caller's frame once it starts.
+            Expr value = stmt.value;
+            while (value instanceof Expr.Grouping) {
+                value = ((Expr.Grouping)value).expression;
+            }
+            if (value instanceof Expr.Call &&
+                    currentFunction != FunctionType.INITIALIZER) {
+                ((Expr.Call)value).isTail = true;
+            }
         }
         return null;
     }
@@ -142,7 +171,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = depthOf(expr.name);
+        if (expr.depth != -1) expr.slot = slotOf(expr.name, expr.depth);
         return null;
     }
 
@@ -195,62 +225,89 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
-        resolveLocal(expr, expr.keyword);
-        return null;
-    }
-
-    @Override
-    public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            errors.error(file, expr.keyword,
                     "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword,
+            errors.error(file, expr.keyword,
                     "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = depthOf(expr.keyword);
+        if (expr.depth != -1) {
+            expr.slot = slotOf(expr.keyword, expr.depth);
+            // The method's "this" is read along with "super".
+            capture(scopes.get(scopes.size() - expr.depth).get("this"));
+        }
         return null;
     }
 
     @Override
-    public Void visitUnaryExpr(Expr.Unary expr) {
+    public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Turtle.error(expr.keyword,
+            errors.error(file, expr.keyword,
                     "Can't use 'this' outside of a class.");
             return null;
+        }
+        // "this" is always slot 0 of the method's frame.
+        expr.depth = depthOf(expr.keyword);
+        if (expr.depth != -1) slotOf(expr.keyword, expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Turtle.error(expr.name,
-                    "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().get(expr.name.lexeme());
+            if (local != null && !local.defined) {
+                errors.error(file, expr.name,
+                        "Can't read local variable in its own initializer.");
+            }
         }
-        resolveLocal(expr, expr.name);
+        expr.depth = depthOf(expr.name);
+        if (expr.depth != -1) expr.slot = slotOf(expr.name, expr.depth);
         return null;
     }
 
 
     private void resolve(Stmt stmt) {
+        file = stmt.file;
         stmt.accept(this);
     }
 
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        functionDepth++;
         beginScope();
+        // Methods are called with their receiver in slot 0.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            defineImplicit("this");
+            function.isMethod = true;
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
+        function.slots = scopes.peek().size();
+        function.captured = captured(scopes.peek());
         endScope();
+        functionDepth--;
         currentFunction = enclosingFunction;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
     private void endScope() {
@@ -259,25 +316,56 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void declare(Token name) {
         if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Turtle.error(name,
+        Map<String, Local> scope = scopes.peek();
+        if (scope.containsKey(name.lexeme())) {
+            errors.error(file, name,
                     "Already variable with this name in this scope.");
+            return;
         }
-        scope.put(name.lexeme, false);
+        scope.put(name.lexeme(), new Local(scope.size(), functionDepth));
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        Local local = scopes.peek().get(name.lexeme());
+        if (local != null) local.defined = true;
+    }
+
+    // Binds "this" or "super" in a scope the interpreter fills in itself.
+    private void defineImplicit(String name) {
+        Map<String, Local> scope = scopes.peek();
+        Local local = new Local(scope.size(), functionDepth);
+        local.defined = true;
+        scope.put(name, local);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // How many scopes out from the current one name is declared, or -1 if
+    // it isn't found and so must be a global.
+    private int depthOf(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            if (scopes.get(i).containsKey(name.lexeme())) {
+                return scopes.size() - 1 - i;
             }
         }
+        return -1;
+    }
+
+    private int slotOf(Token name, int depth) {
+        Local local = scopes.get(scopes.size() - 1 - depth).get(name.lexeme());
+        capture(local);
+        return local.slot;
+    }
+
+    private void capture(Local local) {
+        if (local.functionDepth != functionDepth) local.captured = true;
+    }
+
+    // Which of the scope's slots are captured, by slot.
+    private static boolean[] captured(Map<String, Local> scope) {
+        boolean[] captured = new boolean[scope.size()];
+        for (Local local : scope.values()) {
+            captured[local.slot] = local.captured;
+        }
+        return captured;
     }
 }
@@ -1,9 +0,0 @@
-package com.tonikrug.turtle;
-
-class Return extends RuntimeException {
-    final Object value;
-    Return(Object value) {
-        super(null, null, false, false);
-        this.value = value;
-    }
-}
@@ -2,10 +2,26 @@ package com.tonikrug.turtle;
 
 class RuntimeError extends RuntimeException {
     final Token token;
+    final int line;
+    // The script the line is in, or null if it isn't known (yet).
+    String file = null;
 
     RuntimeError(Token token, String message){
         super(message);
         this.token = token;
+        this.line = token.line;
+    }
+
+    // The VM only keeps a line table, not the tokens themselves.
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
-}
 
+    // Called by each statement or function the error passes through on its
+    // way out. The innermost one is where the error happened.
+    void locate(String file) {
+        if (this.file == null) this.file = file;
+    }
+}
@@ -1,89 +1,99 @@
 package com.tonikrug.turtle;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.tonikrug.turtle.TokenType.*;
 
+// Tokens are produced one at a time by nextToken(), so the Parser can pull
+// them as it goes instead of holding every token of the script at once.
+// A token only points into the source: punctuation and keywords share
+// their type's lexeme, identifiers are interned, and the text of other
+// literals is copied out only if someone asks for it.
 class Scanner {
     private int start = 0; // Start position of the current lexeme
     private int current = 0; // Current position in the source code
     private int line = 1; // Current line number
 
-    private final String source; // Source code to scan
-    private final List<Token> tokens = new ArrayList<>(); // List of scanned tokens
-
-    private static final Map<String, TokenType> keywords;
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
-
-    Scanner(String source) {
+    private final CharSequence source; // Source code to scan
+    private final SymbolTable symbols = new SymbolTable();
+    private final ErrorReporter errors;
+    // The script being scanned, or null if it isn't from a file.
+    private final String file;
+
+    Scanner(CharSequence source, ErrorReporter errors) {
+        this(source, null, 1, errors);
+    }
+
+    Scanner(CharSequence source, String file, ErrorReporter errors) {
+        this(source, file, 1, errors);
+    }
+
+    // Scan source that starts on the given line
+    Scanner(CharSequence source, int line, ErrorReporter errors) {
+        this(source, null, line, errors);
+    }
+
+    private Scanner(CharSequence source, String file, int line,
+                    ErrorReporter errors) {
         this.source = source;
+        this.file = file;
+        this.line = line;
+        this.errors = errors;
     }
 
-    // Scan the source code and return a list of tokens
+    // Scan the whole source code and return a list of tokens
     List<Token> scanTokens() {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != EOF);
+        return tokens;
+    }
+
+    // Scan and return the next token, or EOF once the source runs out
+    Token nextToken() {
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme
             start = current;
-            scanToken();
+            Token token = scanToken();
+            if (token != null) return token;
         }
-        tokens.add(new Token(EOF, "", null, line)); // Add end-of-file token
-        return tokens;
+        start = current;
+        return token(EOF); // End-of-file token
     }
 
-    // Scan the next token and add it to the list
-    private void scanToken() {
+    // Scan one lexeme; null if it was whitespace, a comment or an error
+    private Token scanToken() {
         char c = advance();
         switch (c) {
-            case '(': addToken(LEFT_PAREN); break;
-            case ')': addToken(RIGHT_PAREN); break;
-            case '{': addToken(LEFT_BRACE); break;
-            case '}': addToken(RIGHT_BRACE); break;
-            case ',': addToken(COMMA); break;
-            case '.': addToken(DOT); break;
-            case '-': addToken(MINUS); break;
-            case '+': addToken(PLUS); break;
-            case ';': addToken(SEMICOLON); break;
-            case '*': addToken(STAR); break;
+            case '(': return token(LEFT_PAREN);
+            case ')': return token(RIGHT_PAREN);
+            case '{': return token(LEFT_BRACE);
+            case '}': return token(RIGHT_BRACE);
+            case ',': return token(COMMA);
+            case '.': return token(DOT);
+            case '-': return token(MINUS);
+            case '+': return token(PLUS);
+            case ';': return token(SEMICOLON);
+            case '*': return token(STAR);
             case '!':
-                addToken(match('=') ? BANG_EQUAL : BANG);
-                break;
+                return token(match('=') ? BANG_EQUAL : BANG);
             case '=':
-                addToken(match('=') ? EQUAL_EQUAL : EQUAL);
-                break;
+                return token(match('=') ? EQUAL_EQUAL : EQUAL);
             case '<':
-                addToken(match('=') ? LESS_EQUAL : LESS);
-                break;
+                return token(match('=') ? LESS_EQUAL : LESS);
             case '>':
-                addToken(match('=') ? GREATER_EQUAL : GREATER);
-                break;
+                return token(match('=') ? GREATER_EQUAL : GREATER);
             case '/':
                 if (match('/')) {
                     // A comment goes until the end of the line.
                     while (peek() != '\n' && !isAtEnd()) advance();
-                } else {
-                    addToken(SLASH);
-                } break;
+                    return null;
+                }
+                return token(SLASH);
             case ' ':
             case '\r':
             case '\t':
@@ -92,46 +102,105 @@ class Scanner {
             case '\n':
                 line++;
                 break;
-            case '"': string(); break;
+            case '"': return string();
             default:
                 if (isDigit(c)) {
-                    number();
+                    return number();
                 } else if (isAlpha(c)) {
-                    identifier();
-                } else {
-                    Turtle.error(line, "Unexpected character.");
+                    return identifier();
                 }
+                errors.error(file, line, "Unexpected character.");
                 break;
         }
+        return null;
     }
-    private void identifier() {
+    private Token identifier() {
         while (isAlphaNumeric(peek())) advance();
-        addToken(IDENTIFIER);
+        TokenType type = identifierType();
+        if (type != IDENTIFIER) return token(type);
+        String text = symbols.intern(source, start, current);
+        return new Token(IDENTIFIER, source, start, current - start,
+                text, null, line);
+    }
+
+    // Recognise keywords by walking a trie spelled out as switches on the
+    // first one or two characters, then comparing the rest.
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    // The keyword if the lexeme ends with rest from offset on
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) {
+                return IDENTIFIER;
+            }
+        }
+        return type;
     }
-    private void number() {
+    private Token number() {
         while (isDigit(peek())) advance();
         // Look for a fractional part.
         if (peek() == '.' && isDigit(peekNext())) {
             // Consume the "."
             advance();
             while (isDigit(peek())) advance();
+        } else if (current - start <= 15) {
+            // Small whole numbers fit in a long and convert to a double
+            // exactly, so there's no need to copy the text to parse it.
+            long value = 0;
+            for (int i = start; i < current; i++) {
+                value = value * 10 + (source.charAt(i) - '0');
+            }
+            return token(NUMBER, (double)value);
         }
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        String text = source.subSequence(start, current).toString();
+        return token(NUMBER, Double.parseDouble(text));
     }
-    private void string() {
+    private Token string() {
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line++;
             advance(); }
         if (isAtEnd()) {
-            Turtle.error(line, "Unterminated string.");
-            return;
+            errors.error(file, line, "Unterminated string.");
+            return null;
         }
         // The closing ".
         advance();
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        String value = source.subSequence(start + 1, current - 1).toString();
+        return token(STRING, value);
     }
 
     private boolean match(char expected) {
@@ -171,14 +240,14 @@ class Scanner {
         return source.charAt(current - 1);
     }
 
-    // Add a token without a literal value
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    // Make a token without a literal value
+    private Token token(TokenType type) {
+        return token(type, null);
     }
 
-    // Add a token with a literal value
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current); // Get the lexeme text
-        tokens.add(new Token(type, text, literal, line)); // Add the token to the list
+    // Make a token with a literal value
+    private Token token(TokenType type, Object literal) {
+        return new Token(type, source, start, current - start,
+                type.lexeme, literal, line);
     }
 }
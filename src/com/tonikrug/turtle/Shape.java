@@ -0,0 +1,42 @@
+package com.tonikrug.turtle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of a TurtleInstance's fields: which slot of its values array
+// each field is stored in. Instances of a class that gained the same fields
+// in the same order share one Shape, so a slot looked up for one of them is
+// valid for all of them and can be cached on the Get or Set node.
+final class Shape {
+    private final Map<String, Integer> slots;
+    // Shapes reached by adding one more field to this one.
+    private final Map<String, Shape> transitions = new HashMap<>();
+    final int size;
+
+    Shape() {
+        slots = new HashMap<>();
+        size = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+        slots = new HashMap<>(parent.slots);
+        slots.put(name, parent.size);
+        size = parent.size + 1;
+    }
+
+    // The slot holding the field, or -1 if instances of this shape don't
+    // have it.
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    synchronized Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,20 @@
+package com.tonikrug.turtle;
+
+// The operand types an Expr.Binary has seen so far. A node starts out
+// UNINITIALIZED, specializes on its first evaluation, and falls back to
+// GENERIC for good the first time its operands don't match.
+enum Specialization {
+    UNINITIALIZED,
+    NUMBER,  // both operands have always been numbers
+    STRING,  // a '+' whose operands have always been strings
+    GENERIC;
+
+    static Specialization of(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return NUMBER;
+        if (operator == TokenType.PLUS &&
+                left instanceof String && right instanceof String) {
+            return STRING;
+        }
+        return GENERIC;
+    }
+}
@@ -3,6 +3,8 @@ package com.tonikrug.turtle;
 import java.util.List;
 
 abstract class Stmt {
+  int line;
+  String file;
  interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
@@ -25,6 +27,8 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    int slots;
+    boolean[] captured;
     }
   static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -69,6 +73,10 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    int slots;
+    boolean[] captured;
+    boolean isMethod;
+    JitCompiler.Profile profile;
     }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -0,0 +1,60 @@
+package com.tonikrug.turtle;
+
+// Interns the identifiers a Scanner finds, so every use of a name shares one
+// String and names can be compared by identity. The characters are hashed
+// where they lie in the source, so a name that was seen before costs no
+// allocation. New names go through String.intern(), which makes them the
+// same String in every table and as any name written in Java, like the
+// natives'.
+final class SymbolTable {
+    private String[] symbols = new String[64];
+    private int[] hashes = new int[64];
+    private int count = 0;
+
+    String intern(CharSequence source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = symbols.length - 1;
+        int index = hash & mask;
+        for (;;) {
+            String symbol = symbols[index];
+            if (symbol == null) break;
+            if (hashes[index] == hash && matches(symbol, source, start, end)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+        String symbol = source.subSequence(start, end).toString().intern();
+        symbols[index] = symbol;
+        hashes[index] = hash;
+        // Keep the table at most three quarters full.
+        if (++count * 4 > symbols.length * 3) grow();
+        return symbol;
+    }
+
+    private static boolean matches(String symbol, CharSequence source,
+                                   int start, int end) {
+        if (symbol.length() != end - start) return false;
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        String[] oldSymbols = symbols;
+        int[] oldHashes = hashes;
+        symbols = new String[oldSymbols.length * 2];
+        hashes = new int[oldSymbols.length * 2];
+        int mask = symbols.length - 1;
+        for (int i = 0; i < oldSymbols.length; i++) {
+            if (oldSymbols[i] == null) continue;
+            int index = oldHashes[i] & mask;
+            while (symbols[index] != null) index = (index + 1) & mask;
+            symbols[index] = oldSymbols[i];
+            hashes[index] = oldHashes[i];
+        }
+    }
+}
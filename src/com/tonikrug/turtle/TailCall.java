@@ -0,0 +1,19 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+
+// A call in tail position that hasn't been made yet. It's returned in place
+// of the caller's result, and TurtleFunction.invoke() makes it once the
+// caller's JVM frames are gone, so tail recursion runs in constant stack.
+final class TailCall {
+    final TurtleFunction function;
+    final TurtleInstance receiver;
+    final List<Object> arguments;
+
+    TailCall(TurtleFunction function, TurtleInstance receiver,
+             List<Object> arguments) {
+        this.function = function;
+        this.receiver = receiver;
+        this.arguments = arguments;
+    }
+}
@@ -3,19 +3,41 @@ package com.tonikrug.turtle;
 // Represents a lexical token
 class Token {
     final TokenType type; // Type of the token
-    final String lexeme; // The actual text of the token
     final Object literal; // Literal value (if any)
     final int line; // Line number where the token was found
+    // Where the text of the token lies in the source it was scanned from
+    private final CharSequence source;
+    final int start;
+    final int length;
+    // The actual text of the token, copied out of the source on first use
+    private String lexeme;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, 0, lexeme.length(), lexeme, literal, line);
+    }
+
+    // A token whose text is read from the source only if lexeme() is
+    // called, unless it is already known and given here.
+    Token(TokenType type, CharSequence source, int start, int length,
+          String lexeme, Object literal, int line) {
         this.type = type;
+        this.source = source;
+        this.start = start;
+        this.length = length;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
     }
 
+    String lexeme() {
+        if (lexeme == null) {
+            lexeme = source.subSequence(start, start + length).toString();
+        }
+        return lexeme;
+    }
+
     // Convert the token to a string representation
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme() + " " + literal;
     }
 }
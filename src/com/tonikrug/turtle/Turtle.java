@@ -3,96 +3,243 @@ import com.tonikrug.turtle.*;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.PrintStream;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 
+// One Turtle context: an Interpreter with its globals, where it prints, and
+// where its errors go. Nothing here is static, so any number of contexts can
+// run at once on their own threads.
 public class Turtle {
-    private static final Interpreter interpreter = new Interpreter();
-    // Indicates if an error has occurred
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    private final Interpreter interpreter;
+    private final ErrorReporter errors;
+    private final PrintStream out;
+    private final PrintStream err;
+    // Set by --vm to run scripts on the bytecode VM instead of the
+    // tree-walking Interpreter.
+    private VM vm = null;
+
+    Turtle(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+        this.errors = new ErrorReporter(err);
+        this.interpreter = new Interpreter(out, errors);
+    }
 
     // Entry point of the application
     public static void main(String[] args) throws IOException {
-        // If there are more than one argument, print usage and exit
-        if (args.length > 1) {
-            System.out.println("Usage: turtle [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            // Run the script from a file
-            runFile(args[0]);
+        Turtle turtle = new Turtle(System.out, System.err);
+        Interpreter interpreter = turtle.interpreter;
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                turtle.vm = new VM(interpreter);
+            } else if (arg.equals("--jit")) {
+                interpreter.enableJit();
+            } else if (arg.equals("--profile")) {
+                interpreter.profiler = new Profiler();
+            } else if (arg.equals("--stats")) {
+                interpreter.stats = new ExecutionStats();
+                interpreter.stats.register(turtle.err);
+            } else if (!arg.startsWith("--")) {
+                scripts.add(arg);
+            } else {
+                // Unknown flag, print usage and exit
+                System.out.println("Usage: turtle [--vm | --jit] [--profile] [--stats] [script...]");
+                System.exit(64);
+            }
+        }
+        // JIT-compiled bodies don't count their statements and environments,
+        // so everything is interpreted while they are being counted.
+        if (interpreter.stats != null && interpreter.jit != null) {
+            interpreter.jit = null;
+            turtle.err.println(
+                    "--stats turns off --jit so every statement is counted.");
+        }
+        if (!scripts.isEmpty()) {
+            // Run the scripts from their files
+            turtle.runFiles(scripts);
+            turtle.writeProfile(
+                    Paths.get(scripts.get(0)).getFileName().toString());
+            turtle.dumpStats();
+            // Exit with error code if an error occurred
+            if (turtle.errors.hadError) System.exit(65);
+            if (turtle.errors.hadRuntimeError) System.exit(70);
         } else {
             // Run the interactive prompt
-            runPrompt();
+            turtle.runPrompt(System.in);
+            turtle.writeProfile("turtle");
+            turtle.dumpStats();
         }
     }
 
-    // Run the script from a file
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        // Exit with error code if an error occurred
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
-    }
+    // Run scripts from files, one after the other as if they were a single
+    // script. The files are loaded from their AST cache or scanned and parsed
+    // in parallel, then resolved and run in the order given. Nothing is run
+    // if any of them has an error. A file's cached tree depends only on its
+    // source, so it's stored as soon as it's resolved, whether the script
+    // then runs to the end or not.
+    void runFiles(List<String> paths) throws IOException {
+        errors.showFiles = paths.size() > 1;
+        List<ForkJoinTask<ScriptFile>> tasks = new ArrayList<>();
+        for (String path : paths) {
+            // Scanned straight from the mapped file, and only held as a String
+            // if it isn't all ASCII
+            MappedSource source = MappedSource.map(Paths.get(path));
+            ScriptFile file = new ScriptFile(Paths.get(path), source);
+            tasks.add(ForkJoinTask.adapt(() -> file.load()));
+        }
+        // Runs on the common pool, with this thread taking part.
+        ForkJoinTask.invokeAll(tasks);
 
-    // Run the interactive prompt
-    private static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
-        // Continuously read and execute lines of input
-        for (;;) {
-            System.out.print("> ");
-            String line = reader.readLine();
-            if (line == null) break; // Exit on end of input
-            run(line);
-            hadError = false; // Reset error flag for next command
+        List<ScriptFile> files = new ArrayList<>();
+        for (ForkJoinTask<ScriptFile> task : tasks) {
+            ScriptFile file = task.join();
+            // In the order given, whichever file finished first.
+            file.parseErrors.forwardTo(errors);
+            files.add(file);
+        }
+        if (!errors.hadError) {
+            Resolver resolver = new Resolver(errors);
+            for (ScriptFile file : files) {
+                if (!file.cached) resolver.resolve(file.statements);
+            }
+        }
+        if (!errors.hadError) {
+            // Cached files were optimized before they were stored.
+            Optimizer optimizer = new Optimizer();
+            for (ScriptFile file : files) {
+                if (!file.cached) {
+                    file.statements = optimizer.optimize(file.statements);
+                    AstCache.store(AstCache.pathFor(file.path), file.hash,
+                            file.statements);
+                }
+            }
+        }
+        for (ScriptFile file : files) {
+            if (errors.hadError || errors.hadRuntimeError) break;
+            execute(file.statements);
         }
     }
 
-    // Run the interpreter with the given source code
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-        // Stop if there was a syntax error.
-        if (hadError) return;
+    // A script file on its way to being run
+    private class ScriptFile {
+        final Path path;
+        final MappedSource source;
+        byte[] hash;
+        List<Stmt> statements;
+        // Whether the statements came resolved from the AST cache
+        boolean cached;
+        // Held back until the files before it have reported theirs
+        final ErrorCollector parseErrors = new ErrorCollector();
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-
-        // Stop if there was a resolution error.
-        if (hadError) return;
+        ScriptFile(Path path, MappedSource source) {
+            this.path = path;
+            this.source = source;
+            parseErrors.showFiles = errors.showFiles;
+        }
 
-        interpreter.interpret(statements);
+        // Load the statements from the cache if it's fresh, otherwise scan
+        // and parse them. Safe to call from several threads at once.
+        ScriptFile load() {
+            hash = AstCache.hash(source);
+            statements = AstCache.load(AstCache.pathFor(path), hash,
+                    path.toString());
+            cached = statements != null;
+            if (!cached) {
+                statements = parse(source.text(), path.toString(),
+                        parseErrors);
+            }
+            return this;
+        }
     }
 
-    // Report an error at a specific line
-    static void error(int line, String message) {
-        report(line, "", message);
+    // Write the samples taken by --profile to <name>.collapsed in the
+    // working directory
+    private void writeProfile(String name) throws IOException {
+        Profiler profiler = interpreter.profiler;
+        if (profiler == null) return;
+        profiler.stop();
+        Path path = Paths.get(name + ".collapsed");
+        profiler.write(path);
+        err.println("Profile written to " + path);
     }
 
-    // Report an error with additional context
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true; // Set the error flag
+    // Print the --stats counters to the context's error stream
+    private void dumpStats() {
+        if (interpreter.stats != null) interpreter.stats.dump(err);
     }
 
-    static void error(Token token, String message){
-        if (token.type == TokenType.EOF){
-            report(token.line, " at end", message);
-        } else {
-            report(token.line,"at '" + token.lexeme + "'", message);
+    // Run the interactive prompt. An entry can span several lines: while it
+    // has unclosed braces or parentheses, each new line is scanned on its
+    // own and its tokens are added to those of the lines before. The whole
+    // entry is then parsed, resolved and run at once.
+    void runPrompt(InputStream in) throws IOException {
+        InputStreamReader input = new InputStreamReader(in);
+        BufferedReader reader = new BufferedReader(input);
+        // One Resolver for the whole session
+        Resolver resolver = new Resolver(errors);
+        Optimizer optimizer = new Optimizer();
+        List<Token> tokens = new ArrayList<>();
+        int lines = 0; // Lines in the entry so far
+        int depth = 0; // Braces and parentheses left open
+        // Continuously read and execute lines of input
+        for (;;) {
+            out.print(lines == 0 ? "> " : "... ");
+            String line = reader.readLine();
+            if (line == null) break; // Exit on end of input
+            Scanner scanner = new Scanner(line, ++lines, errors);
+            for (Token token = scanner.nextToken(); token.type != TokenType.EOF;
+                 token = scanner.nextToken()) {
+                switch (token.type) {
+                    case LEFT_BRACE:
+                    case LEFT_PAREN:
+                        depth++;
+                        break;
+                    case RIGHT_BRACE:
+                    case RIGHT_PAREN:
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+                tokens.add(token);
+            }
+            // Read the rest of the entry
+            if (depth > 0 && !errors.hadError) continue;
+
+            tokens.add(new Token(TokenType.EOF, "", null, lines));
+            List<Stmt> statements = new Parser(tokens, errors).parse();
+            if (!errors.hadError) resolver.resolve(statements);
+            if (!errors.hadError) execute(optimizer.optimize(statements));
+            // Nothing of the entry is kept once it has run.
+            tokens = new ArrayList<>();
+            lines = 0;
+            depth = 0;
+            errors.hadError = false; // Reset error flag for next command
         }
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+    // Scan and parse the source code of a file. Safe to call from several
+    // threads at once.
+    private List<Stmt> parse(CharSequence source, String file,
+                             ErrorReporter errors) {
+        Scanner scanner = new Scanner(source, file, errors);
+        Parser parser = new Parser(scanner, file, errors);
+        return parser.parse();
+    }
+
+    // Run resolved statements on the chosen engine
+    private void execute(List<Stmt> statements) {
+        if (vm != null) {
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 }
@@ -0,0 +1,70 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+// A queue tasks pass values through, made by channel(capacity). send(c, v)
+// blocks while the channel is full and receive(c) while it's empty. A
+// channel with capacity 0 hands each value straight from sender to
+// receiver. Everything a task did before sending a value is visible to the
+// task that receives it.
+final class TurtleChannel {
+    // Blocking queues can't hold null, so nil is sent as NIL.
+    private static final Object NIL = new Object();
+
+    private final BlockingQueue<Object> queue;
+
+    private TurtleChannel(int capacity) {
+        queue = capacity == 0
+                ? new SynchronousQueue<>()
+                : new ArrayBlockingQueue<>(capacity);
+    }
+
+    static Object create(Interpreter interpreter, List<Object> arguments) {
+        Object capacity = arguments.get(0);
+        if (!(capacity instanceof Double) || (double)capacity < 0 ||
+                (double)capacity != Math.floor((double)capacity) ||
+                (double)capacity > Integer.MAX_VALUE) {
+            throw new NativeError(
+                    "Channel capacity must be a whole number of at least 0.");
+        }
+        return new TurtleChannel((int)(double)capacity);
+    }
+
+    static Object send(Interpreter interpreter, List<Object> arguments) {
+        TurtleChannel channel = channel(arguments.get(0));
+        Object value = arguments.get(1);
+        try {
+            channel.queue.put(value == null ? NIL : value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while sending.");
+        }
+        return null;
+    }
+
+    static Object receive(Interpreter interpreter, List<Object> arguments) {
+        TurtleChannel channel = channel(arguments.get(0));
+        try {
+            Object value = channel.queue.take();
+            return value == NIL ? null : value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while receiving.");
+        }
+    }
+
+    private static TurtleChannel channel(Object value) {
+        if (!(value instanceof TurtleChannel)) {
+            throw new NativeError("Can only send to and receive from a channel.");
+        }
+        return (TurtleChannel)value;
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
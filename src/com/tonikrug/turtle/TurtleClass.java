@@ -1,25 +1,53 @@
 package com.tonikrug.turtle;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 class TurtleClass implements TurtleCallable {
     final TurtleClass superclass;
     final String name;
+    // Inherited methods are copied in when the class is defined, so a
+    // lookup never has to walk the superclass chain.
     private final Map<String, TurtleFunction> methods;
+    // The methods again, by an index inline caches can hold on to.
+    private final TurtleFunction[] methodTable;
+    private final Map<String, Integer> methodIndexes = new HashMap<>();
+    final TurtleFunction initializer;
+    // Every instance starts out with this shape, and with room for as many
+    // fields as the biggest instance so far ended up with.
+    final Shape rootShape = new Shape();
+    int instanceSize = 0;
     TurtleClass(String name, TurtleClass superclass, Map<String, TurtleFunction> methods) {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+        if (superclass != null) {
+            this.methods = new HashMap<>(superclass.methods);
+            this.methods.putAll(methods);
+        } else {
+            this.methods = methods;
+        }
+        this.initializer = this.methods.get("init");
+        this.methodTable = new TurtleFunction[this.methods.size()];
+        int index = 0;
+        for (Map.Entry<String, TurtleFunction> method :
+                this.methods.entrySet()) {
+            methodTable[index] = method.getValue();
+            methodIndexes.put(method.getKey(), index++);
+        }
     }
 
     TurtleFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-        return null;
+        return methods.get(name);
+    }
+
+    // The index of the method in the method table, or -1 if there's none
+    int methodIndex(String name) {
+        Integer index = methodIndexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    TurtleFunction methodAt(int index) {
+        return methodTable[index];
     }
 
     @Override
@@ -30,17 +58,16 @@ class TurtleClass implements TurtleCallable {
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
+        if (interpreter.stats != null) interpreter.stats.instance(this);
         TurtleInstance instance = new TurtleInstance(this);
-        TurtleFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
 
     @Override
     public int arity() {
-        TurtleFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
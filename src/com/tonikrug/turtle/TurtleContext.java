@@ -0,0 +1,60 @@
+package com.tonikrug.turtle;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The globals scripts run against and the stream they print to. Scripts run
+// one after another in a context see what the ones before them defined. A
+// context must only be used by one thread at a time.
+public final class TurtleContext {
+    private final ErrorCollector errors = new ErrorCollector();
+    private final Interpreter interpreter;
+
+    TurtleContext(PrintStream out) {
+        interpreter = new Interpreter(out, errors);
+    }
+
+    // Define a global. Java numbers become Turtle numbers; strings, booleans
+    // and null are the same in both. Anything else is passed through as an
+    // opaque value.
+    public void put(String name, Object value) {
+        interpreter.globals.define(name, toTurtle(value));
+    }
+
+    static Object toTurtle(Object value) {
+        if (value instanceof Number && !(value instanceof Double)) {
+            return ((Number)value).doubleValue();
+        }
+        return value;
+    }
+
+    // The value of a global, or null if it isn't defined. Numbers come back
+    // as Doubles.
+    public Object get(String name) {
+        return interpreter.globals.get(name);
+    }
+
+    // Every global except the natives the Interpreter defines itself
+    Map<String, Object> globals() {
+        Map<String, Object> globals = new HashMap<>();
+        interpreter.globals.globals().forEach((name, value) -> {
+            if (!isNative(value)) globals.put(name, value);
+        });
+        return globals;
+    }
+
+    // Natives are the only callables that aren't Turtle functions or
+    // classes.
+    private static boolean isNative(Object value) {
+        return value instanceof TurtleCallable &&
+                !(value instanceof TurtleFunction) &&
+                !(value instanceof TurtleClass);
+    }
+
+    void execute(List<Stmt> statements) throws TurtleException {
+        interpreter.interpret(statements);
+        if (errors.hadRuntimeError) throw errors.drain();
+    }
+}
@@ -0,0 +1,47 @@
+package com.tonikrug.turtle;
+
+import java.io.PrintStream;
+import java.util.List;
+
+// Entry point for running Turtle from Java. Source is compiled once into a
+// CompiledScript, which keeps the resolved syntax tree and can then be run
+// any number of times without scanning, parsing or resolving it again:
+//
+//     TurtleEngine engine = new TurtleEngine();
+//     CompiledScript script = engine.compile("print greeting + name;");
+//     script.execute(Map.of("greeting", "hi ", "name", "there"));
+//
+// An engine and its scripts can be shared by any number of threads.
+public final class TurtleEngine {
+    private final PrintStream out;
+
+    // An engine whose scripts print to System.out
+    public TurtleEngine() {
+        this(System.out);
+    }
+
+    // An engine whose scripts print to out unless their context says
+    // otherwise
+    public TurtleEngine(PrintStream out) {
+        this.out = out;
+    }
+
+    public CompiledScript compile(CharSequence source) throws TurtleException {
+        ErrorCollector errors = new ErrorCollector();
+        Scanner scanner = new Scanner(source, errors);
+        List<Stmt> statements = new Parser(scanner, errors).parse();
+        if (!errors.hadError) new Resolver(errors).resolve(statements);
+        if (errors.hadError) throw errors.drain();
+        return new CompiledScript(this, new Optimizer().optimize(statements));
+    }
+
+    // Fresh globals that print to the engine's stream
+    public TurtleContext createContext() {
+        return new TurtleContext(out);
+    }
+
+    // Fresh globals that print to out
+    public TurtleContext createContext(PrintStream out) {
+        return new TurtleContext(out);
+    }
+}
@@ -0,0 +1,22 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+
+// Thrown by the embedding API when a script doesn't compile or fails while
+// running. The message holds every error reported, as the command line
+// would print them.
+public class TurtleException extends Exception {
+    private final List<String> errors;
+    // The line of the first error, or -1 if it isn't known
+    final int line;
+
+    TurtleException(List<String> errors, int line) {
+        super(String.join("\n", errors));
+        this.errors = List.copyOf(errors);
+        this.line = line;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+}
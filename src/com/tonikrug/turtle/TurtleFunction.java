@@ -3,19 +3,33 @@ package com.tonikrug.turtle;
 import java.util.List;
 
 class TurtleFunction implements TurtleCallable {
-    private final boolean isInitializer;
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    final boolean isInitializer;
+    final Stmt.Function declaration;
+    final Environment closure;
+    // The instance a method was bound to. Null for plain functions, and for
+    // the unbound methods in a class, which are invoked with a receiver.
+    final TurtleInstance receiver;
+    // Set once the JitCompiler has compiled this function's body.
+    private JitCode compiled = null;
     TurtleFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    TurtleFunction(Stmt.Function declaration, Environment closure,
+                   boolean isInitializer, TurtleInstance receiver) {
         this.isInitializer = isInitializer;
         this.closure = closure;
         this.declaration = declaration;
+        this.receiver = receiver;
     }
 
+    // Only needed when a method is used as a value; calls go through
+    // invoke() with the receiver instead.
     TurtleFunction bind(TurtleInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new TurtleFunction(declaration, environment, isInitializer);
+        TurtleFunction bound = new TurtleFunction(declaration, closure,
+                isInitializer, instance);
+        bound.compiled = compiled;
+        return bound;
     }
 
     @Override
@@ -25,26 +39,70 @@ class TurtleFunction implements TurtleCallable {
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
 
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Environment environment = new Environment(closure);
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    Object invoke(Interpreter interpreter, TurtleInstance receiver,
+                  List<Object> arguments) {
+        TurtleFunction function = this;
+        for (;;) {
+            if (interpreter.stats != null) {
+                interpreter.stats.call(function.declaration);
+            }
+            Profiler profiler = interpreter.profiler;
+            Object result;
+            if (profiler == null) {
+                result = function.execute(interpreter, receiver, arguments);
+            } else {
+                profiler.enter(function.declaration.name.lexeme());
+                result = function.execute(interpreter, receiver, arguments);
+                profiler.exit();
+            }
+            // The trampoline: a call made in tail position comes back
+            // unmade, and is made here once its caller's frames are gone.
+            if (!(result instanceof TailCall)) return result;
+            TailCall call = (TailCall)result;
+            function = call.function;
+            receiver = call.receiver;
+            arguments = call.arguments;
+        }
+    }
+
+    // Methods keep "this" in slot 0 of their own frame, ahead of the
+    // parameters.
+    private Object execute(Interpreter interpreter, TurtleInstance receiver,
+                           List<Object> arguments) {
+        if (interpreter.jit != null) {
+            if (compiled == null) compiled = interpreter.jit.compiledCode(this);
+            if (compiled != null) {
+                try {
+                    return compiled.invoke(interpreter, closure, receiver,
+                            arguments.toArray());
+                } catch (RuntimeError error) {
+                    // Compiled bodies don't go through execute().
+                    error.locate(declaration.file);
+                    throw error;
+                }
+            }
+        }
+        if (interpreter.stats != null) interpreter.stats.environment();
+        Environment environment = new Environment(closure, declaration.slots);
+        if (declaration.isMethod) environment.define(receiver);
         for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+            environment.define(arguments.get(i));
         }
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
-            if (isInitializer) return closure.getAt(0, "this");
+        Completion completion =
+                interpreter.executeBlock(declaration.body, environment);
+        if (isInitializer) return receiver;
+        if (completion == Completion.RETURN) {
+            return interpreter.takeReturnValue();
         }
         return null;
     }
 }
-
-
@@ -1,29 +1,86 @@
 package com.tonikrug.turtle;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class TurtleInstance {
-    private TurtleClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] EMPTY = new Object[0];
+
+    final TurtleClass klass;
+    private Shape shape;
+    private Object[] values;
 
     TurtleInstance(TurtleClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        int size = klass.instanceSize;
+        this.values = size == 0 ? EMPTY : new Object[size];
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    Object get(Expr.Get expr) {
+        InlineCache cache = expr.cache;
+        for (InlineCache entry = cache; entry != null; entry = entry.next) {
+            if (entry.shape == shape) {
+                if (entry.isMethod) {
+                    return klass.methodAt(entry.slot).bind(this);
+                }
+                return values[entry.slot];
+            }
+        }
+        int slot = shape.slotOf(expr.name.lexeme());
+        if (slot != -1) {
+            expr.cache = InlineCache.field(shape, slot, shape, cache);
+            return values[slot];
         }
-        TurtleFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+        int index = klass.methodIndex(expr.name.lexeme());
+        if (index != -1) {
+            expr.cache = InlineCache.method(shape, index, cache);
+            return klass.methodAt(index).bind(this);
+        }
+
+        throw new RuntimeError(expr.name,
+                "Undefined property '" + expr.name.lexeme() + "'.");
+    }
 
-        throw new RuntimeError(name,
-                "Undefined property '" + name.lexeme + "'.");
+    // The method expr names, unless a field shadows it, so it can be
+    // invoked on this instance without binding it first.
+    TurtleFunction method(Expr.Get expr) {
+        InlineCache cache = expr.cache;
+        for (InlineCache entry = cache; entry != null; entry = entry.next) {
+            if (entry.shape == shape) {
+                return entry.isMethod ? klass.methodAt(entry.slot) : null;
+            }
+        }
+        if (shape.slotOf(expr.name.lexeme()) != -1) return null;
+        int index = klass.methodIndex(expr.name.lexeme());
+        if (index == -1) return null;
+        expr.cache = InlineCache.method(shape, index, cache);
+        return klass.methodAt(index);
     }
 
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    void set(Expr.Set expr, Object value) {
+        InlineCache cache = expr.cache;
+        InlineCache entry = cache;
+        while (entry != null && entry.shape != shape) entry = entry.next;
+        if (entry == null) {
+            String name = expr.name.lexeme();
+            int slot = shape.slotOf(name);
+            if (slot != -1) {
+                entry = InlineCache.field(shape, slot, shape, cache);
+            } else {
+                entry = InlineCache.field(shape, shape.size,
+                        shape.withField(name), cache);
+            }
+            expr.cache = entry;
+        }
+        if (entry.slot == values.length) {
+            // Later instances of the class start out this big.
+            values = Arrays.copyOf(values, entry.newShape.size);
+            if (klass.instanceSize < values.length) {
+                klass.instanceSize = values.length;
+            }
+        }
+        values[entry.slot] = value;
+        shape = entry.newShape;
     }
 
     @Override
@@ -0,0 +1,215 @@
+package com.tonikrug.turtle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+// javax.script engine on top of TurtleEngine. Every evaluation runs in a
+// fresh TurtleContext whose globals start out as the context's global scope
+// bindings overlaid with its engine scope ones. Afterwards the globals the
+// script defined or changed are written back to the engine scope, so they
+// can be read with get() or used by the next evaluation. Turtle values have
+// no result, so eval() returns null.
+//
+// Scripts compiled with compile() keep their syntax tree and can be
+// evaluated from any number of threads at once.
+public class TurtleScriptEngine extends AbstractScriptEngine
+        implements Compilable {
+    private final TurtleScriptEngineFactory factory;
+    private final TurtleEngine engine = new TurtleEngine();
+
+    TurtleScriptEngine(TurtleScriptEngineFactory factory) {
+        this.factory = factory;
+        // Evaluations on other threads write their globals back here.
+        context.setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context)
+            throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader script, ScriptContext context)
+            throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Compiled compile(String script) throws ScriptException {
+        try {
+            return new Compiled(engine.compile(script));
+        } catch (TurtleException e) {
+            throw scriptException(e, context);
+        }
+    }
+
+    @Override
+    public Compiled compile(Reader script) throws ScriptException {
+        StringWriter source = new StringWriter();
+        try {
+            script.transferTo(source);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return compile(source.toString());
+    }
+
+    // Bindings that can be shared by evaluations on several threads
+    @Override
+    public Bindings createBindings() {
+        return new SharedBindings();
+    }
+
+    // Bindings over a synchronized map. Its single operations are atomic,
+    // but iterating it, or checking it and then putting into it, has to
+    // hold the map's lock.
+    private static final class SharedBindings extends SimpleBindings {
+        final Map<String, Object> map;
+
+        SharedBindings() {
+            this(Collections.synchronizedMap(new HashMap<>()));
+        }
+
+        private SharedBindings(Map<String, Object> map) {
+            super(map);
+            this.map = map;
+        }
+    }
+
+    // What to hold while reading bindings as a whole. Bindings the caller
+    // made themselves are locked on as they are.
+    private static Object lockOf(Bindings bindings) {
+        if (bindings instanceof SharedBindings) {
+            return ((SharedBindings)bindings).map;
+        }
+        return bindings;
+    }
+
+    // A copy of the bindings, which may be null, that other threads can go
+    // on changing while it's read
+    private static Map<String, Object> copy(Bindings bindings) {
+        if (bindings == null) return new HashMap<>();
+        synchronized (lockOf(bindings)) {
+            return new HashMap<>(bindings);
+        }
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    // Names the file the context says the script came from, if any, and the
+    // line of its first error. Turtle doesn't keep track of columns.
+    private static ScriptException scriptException(TurtleException e,
+                                                   ScriptContext context) {
+        Object file = context.getAttribute(ScriptEngine.FILENAME);
+        ScriptException exception = new ScriptException(e.getMessage(),
+                file != null ? file.toString() : null, e.line, -1);
+        exception.initCause(e);
+        return exception;
+    }
+
+    // A script compiled once and evaluated as often as needed
+    public class Compiled extends javax.script.CompiledScript {
+        private final CompiledScript script;
+
+        Compiled(CompiledScript script) {
+            this.script = script;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            PrintStream out = new PrintStream(
+                    new WriterOutputStream(context.getWriter()), true,
+                    StandardCharsets.UTF_8);
+            TurtleContext turtle = engine.createContext(out);
+            // Engine scope bindings hide global scope ones of the same name.
+            Map<String, Object> given =
+                    copy(context.getBindings(ScriptContext.GLOBAL_SCOPE));
+            Bindings local = context.getBindings(ScriptContext.ENGINE_SCOPE);
+            given.putAll(copy(local));
+            given.forEach(turtle::put);
+            try {
+                script.execute(turtle);
+            } catch (TurtleException e) {
+                throw scriptException(e, context);
+            } finally {
+                out.flush();
+                if (local != null) writeBack(turtle, given, local);
+            }
+            return null;
+        }
+
+        // Globals the script defined or changed go to the engine scope.
+        // Bindings it left alone keep the values they were given, not the
+        // Turtle versions of them. given is what the script found in both
+        // scopes.
+        private void writeBack(TurtleContext turtle, Map<String, Object> given,
+                               Bindings local) {
+            synchronized (lockOf(local)) {
+                turtle.globals().forEach((name, value) -> {
+                    if (!given.containsKey(name) ||
+                            !Objects.equals(
+                                    TurtleContext.toTurtle(given.get(name)),
+                                    value)) {
+                        local.put(name, value);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public TurtleScriptEngine getEngine() {
+            return TurtleScriptEngine.this;
+        }
+    }
+
+    // Turtle prints to a PrintStream, javax.script hands out a Writer. The
+    // stream is flushed after every line, so a flush never splits a
+    // character.
+    private static final class WriterOutputStream extends OutputStream {
+        private final Writer writer;
+        private byte[] buffer = new byte[128];
+        private int count = 0;
+
+        WriterOutputStream(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+            }
+            buffer[count++] = (byte)b;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.write(new String(buffer, 0, count, StandardCharsets.UTF_8));
+            writer.flush();
+            count = 0;
+        }
+    }
+}
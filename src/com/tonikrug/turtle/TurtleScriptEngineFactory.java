@@ -0,0 +1,87 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+// Makes Turtle available through javax.script, found by the
+// ScriptEngineManager through META-INF/services. Engines are
+// MULTITHREADED: they can evaluate on any number of threads at once, and
+// every evaluation gets globals of its own.
+public class TurtleScriptEngineFactory implements ScriptEngineFactory {
+    private static final String VERSION = "1.0";
+
+    @Override
+    public String getEngineName() {
+        return "JTurtle";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("turtle");
+    }
+
+    // None registered; text/turtle is the unrelated RDF format.
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return List.of("turtle", "Turtle", "jturtle");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "Turtle";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE: return getEngineName();
+            case ScriptEngine.ENGINE_VERSION: return getEngineVersion();
+            case ScriptEngine.NAME: return getNames().get(0);
+            case ScriptEngine.LANGUAGE: return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION: return getLanguageVersion();
+            case "THREADING": return "MULTITHREADED";
+        }
+        return null;
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        return obj + "." + m + "(" + String.join(", ", args) + ")";
+    }
+
+    // Turtle strings have no escapes, so toDisplay can't contain '"'.
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "print \"" + toDisplay + "\";";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        StringBuilder program = new StringBuilder();
+        for (String statement : statements) {
+            program.append(statement).append(";\n");
+        }
+        return program.toString();
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new TurtleScriptEngine(this);
+    }
+}
@@ -0,0 +1,72 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+
+// A function running on a virtual thread of its own, started by the
+// spawn(fn) native. await(task) blocks until it's done and returns what
+// the function returned, or raises the runtime error it stopped with. A task
+// that stopped on anything else, like a stack overflow, raises that as a
+// runtime error instead.
+//
+// Tasks share the globals. Other values, like instances and the variables
+// of enclosing functions, aren't synchronized, so tasks should hand them
+// over through a channel rather than change them at the same time.
+final class TurtleTask {
+    private final Thread thread;
+    // Written by the task's thread; read after joining it.
+    private Object result;
+    private Throwable failure;
+
+    private TurtleTask(Interpreter interpreter, TurtleCallable function) {
+        Interpreter child = interpreter.fork();
+        thread = Thread.ofVirtual().name("turtle-task").start(() -> {
+            try {
+                result = function.call(child, List.of());
+            } catch (Throwable e) {
+                failure = e;
+            }
+        });
+    }
+
+    static Object spawn(Interpreter interpreter, List<Object> arguments) {
+        Object function = arguments.get(0);
+        if (!(function instanceof TurtleCallable) ||
+                ((TurtleCallable)function).arity() != 0) {
+            throw new NativeError(
+                    "Can only spawn functions that take no arguments.");
+        }
+        return new TurtleTask(interpreter, (TurtleCallable)function);
+    }
+
+    static Object await(Interpreter interpreter, List<Object> arguments) {
+        if (!(arguments.get(0) instanceof TurtleTask)) {
+            throw new NativeError("Can only await a task.");
+        }
+        TurtleTask task = (TurtleTask)arguments.get(0);
+        try {
+            task.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while awaiting a task.");
+        }
+        if (task.failure != null) throw task.error();
+        return task.result;
+    }
+
+    // The failure the task stopped with, as a runtime error
+    private RuntimeError error() {
+        if (failure instanceof RuntimeError) return (RuntimeError)failure;
+        if (failure instanceof StackOverflowError) {
+            return new RuntimeError(0, "Stack overflow.");
+        }
+        if (failure instanceof NativeError) {
+            return new RuntimeError(0, failure.getMessage());
+        }
+        return new RuntimeError(0, "Task failed: " + failure);
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
@@ -0,0 +1,632 @@
+package com.tonikrug.turtle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Stack-based virtual machine for Chunks produced by BytecodeCompiler. It
+// shares globals, native functions and the runtime value types with the
+// Interpreter, which remains the reference engine.
+//
+// Numbers on the stack are kept unboxed: a slot holding NUMBER has its value
+// in the same slot of numbers. Arithmetic reads and writes those directly,
+// so a number is only boxed when it leaves the stack, as when it's stored
+// in a global or a field or passed to a native.
+class VM {
+    private static final int FRAMES_MAX = 1 << 16;
+    private static final Object NUMBER = new Object();
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    // Frames are reused between calls to keep invocation allocation-free.
+    private static final class CallFrame {
+        Chunk chunk;
+        VmFunction function;
+        TurtleInstance receiver;
+        Environment environment;
+        // The frame's first stack slot: the receiver of a method or the
+        // callee, followed by the arguments and then the other locals.
+        int slots;
+        int ip;
+    }
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        interpreter.vm = this;
+    }
+
+    void interpret(List<Stmt> statements) {
+        ErrorReporter errors = interpreter.errors;
+        Chunk script = new BytecodeCompiler(errors).compile(statements);
+        // Stop if the chunk couldn't be encoded.
+        if (errors.hadError) return;
+        try {
+            pushFrame(script, null, null, globals, stackTop);
+            run(0);
+        } catch (RuntimeError error) {
+            // The frame it was thrown in is still on top.
+            if (frameCount > 0) {
+                error.locate(frames[frameCount - 1].chunk.file);
+            }
+            stackTop = 0;
+            frameCount = 0;
+            if (interpreter.profiler != null) interpreter.profiler.reset();
+            errors.runtimeError(error);
+        }
+    }
+
+    // Entry point for native code calling back into a compiled function.
+    Object call(VmFunction function, TurtleInstance receiver,
+                List<Object> arguments) {
+        push(function);
+        for (Object argument : arguments) {
+            push(argument);
+        }
+        int base = frameCount;
+        pushCall(function, receiver, arguments.size());
+        return run(base);
+    }
+
+    private void pushFrame(Chunk chunk, VmFunction function,
+                           TurtleInstance receiver, Environment environment,
+                           int slots) {
+        if (frameCount == frames.length) {
+            if (frameCount == FRAMES_MAX) {
+                throw new RuntimeError(currentLine(), "Stack overflow.");
+            }
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.chunk = chunk;
+        frame.function = function;
+        frame.receiver = receiver;
+        frame.environment = environment;
+        frame.slots = slots;
+        frame.ip = 0;
+        frameCount++;
+    }
+
+    private int currentLine() {
+        if (frameCount == 0) return 0;
+        CallFrame frame = frames[frameCount - 1];
+        return frame.chunk.lines[Math.max(frame.ip - 1, 0)];
+    }
+
+    // Runs until the frame at index `base` returns, and yields its result.
+    private Object run(int base) {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.chunk.code;
+        Object[] constants = frame.chunk.constants;
+        int ip = frame.ip;
+
+        for (;;) {
+            int start = ip;
+            switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    push(constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.POP: stackTop--; break;
+                case OpCode.POP_N:
+                    stackTop -= readShort(code, ip);
+                    ip += 2;
+                    break;
+                case OpCode.GET_LOCAL:
+                    pushSlot(frame.slots + readShort(code, ip));
+                    ip += 2;
+                    break;
+                case OpCode.SET_LOCAL:
+                    copySlot(stackTop - 1, frame.slots + readShort(code, ip));
+                    ip += 2;
+                    break;
+                case OpCode.STORE_LOCAL:
+                    copySlot(--stackTop, frame.slots + readShort(code, ip));
+                    ip += 2;
+                    break;
+                case OpCode.GET_CAPTURED: {
+                    int depth = readShort(code, ip);
+                    int slot = readShort(code, ip + 2);
+                    ip += 4;
+                    push(frame.environment.getAt(depth, slot));
+                    break;
+                }
+                case OpCode.SET_CAPTURED: {
+                    int depth = readShort(code, ip);
+                    int slot = readShort(code, ip + 2);
+                    ip += 4;
+                    frame.environment.assignAt(depth, slot, peek(0));
+                    break;
+                }
+                case OpCode.DEFINE_CAPTURED:
+                    frame.environment.define(pop());
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    Token name = (Token)constants[readShort(code, ip)];
+                    ip += 2;
+                    push(globals.get(name));
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    Token name = (Token)constants[readShort(code, ip)];
+                    ip += 2;
+                    globals.assign(name, peek(0));
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    Token name = (Token)constants[readShort(code, ip)];
+                    ip += 2;
+                    globals.define(name.lexeme(), pop());
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    Expr.Get get = (Expr.Get)constants[readShort(code, ip)];
+                    ip += 2;
+                    Object object = pop();
+                    if (!(object instanceof TurtleInstance)) {
+                        throw new RuntimeError(get.name,
+                                "Only instances have properties.");
+                    }
+                    push(((TurtleInstance)object).get(get));
+                    break;
+                }
+                case OpCode.CHECK_INSTANCE: {
+                    Token name = (Token)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(peek(0) instanceof TurtleInstance)) {
+                        throw new RuntimeError(name,
+                                "Only instances have fields.");
+                    }
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    Expr.Set set = (Expr.Set)constants[readShort(code, ip)];
+                    ip += 2;
+                    Object value = pop();
+                    ((TurtleInstance)pop()).set(set, value);
+                    push(value);
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    Token method = (Token)constants[readShort(code, ip)];
+                    ip += 2;
+                    TurtleClass superclass = (TurtleClass)pop();
+                    TurtleInstance object = (TurtleInstance)pop();
+                    TurtleFunction function =
+                            superclass.findMethod(method.lexeme());
+                    if (function == null) {
+                        throw new RuntimeError(method,
+                                "Undefined property '" + method.lexeme() + "'.");
+                    }
+                    push(function.bind(object));
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    int a = stackTop - 2;
+                    int b = stackTop - 1;
+                    boolean equal;
+                    if (stack[a] == NUMBER && stack[b] == NUMBER) {
+                        // Same as isEqual(), which uses Double.equals().
+                        equal = Double.doubleToLongBits(numbers[a]) ==
+                                Double.doubleToLongBits(numbers[b]);
+                    } else {
+                        equal = Interpreter.isEqual(value(a), value(b));
+                    }
+                    stackTop--;
+                    stack[a] = equal;
+                    break;
+                }
+                case OpCode.GREATER:
+                    checkNumberOperands(frame, start);
+                    stackTop--;
+                    stack[stackTop - 1] =
+                            numbers[stackTop - 1] > numbers[stackTop];
+                    break;
+                case OpCode.GREATER_EQUAL:
+                    checkNumberOperands(frame, start);
+                    stackTop--;
+                    stack[stackTop - 1] =
+                            numbers[stackTop - 1] >= numbers[stackTop];
+                    break;
+                case OpCode.LESS:
+                    checkNumberOperands(frame, start);
+                    stackTop--;
+                    stack[stackTop - 1] =
+                            numbers[stackTop - 1] < numbers[stackTop];
+                    break;
+                case OpCode.LESS_EQUAL:
+                    checkNumberOperands(frame, start);
+                    stackTop--;
+                    stack[stackTop - 1] =
+                            numbers[stackTop - 1] <= numbers[stackTop];
+                    break;
+                case OpCode.ADD: {
+                    if (unbox(stackTop - 1) && unbox(stackTop - 2)) {
+                        stackTop--;
+                        numbers[stackTop - 1] += numbers[stackTop];
+                        break;
+                    }
+                    Object b = pop();
+                    Object a = pop();
+                    if (a instanceof String && b instanceof String) {
+                        push((String)a + (String)b);
+                    } else {
+                        throw new RuntimeError(frame.chunk.lines[start],
+                                "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT:
+                    checkNumberOperands(frame, start);
+                    stackTop--;
+                    numbers[stackTop - 1] -= numbers[stackTop];
+                    break;
+                case OpCode.MULTIPLY:
+                    checkNumberOperands(frame, start);
+                    stackTop--;
+                    numbers[stackTop - 1] *= numbers[stackTop];
+                    break;
+                case OpCode.DIVIDE:
+                    checkNumberOperands(frame, start);
+                    stackTop--;
+                    numbers[stackTop - 1] /= numbers[stackTop];
+                    break;
+                case OpCode.NOT:
+                    stack[stackTop - 1] = isFalsey(stackTop - 1);
+                    break;
+                case OpCode.NEGATE:
+                    if (!unbox(stackTop - 1)) {
+                        throw new RuntimeError(frame.chunk.lines[start],
+                                "Operand must be a number.");
+                    }
+                    numbers[stackTop - 1] = -numbers[stackTop - 1];
+                    break;
+                case OpCode.PRINT:
+                    interpreter.out.println(Interpreter.stringify(pop()));
+                    break;
+                case OpCode.JUMP:
+                    ip += 2 + readShort(code, ip);
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (isFalsey(stackTop - 1)) {
+                        ip += 2 + readShort(code, ip);
+                    } else {
+                        ip += 2;
+                    }
+                    break;
+                case OpCode.POP_JUMP_IF_FALSE:
+                    if (isFalsey(--stackTop)) {
+                        ip += 2 + readShort(code, ip);
+                    } else {
+                        ip += 2;
+                    }
+                    break;
+                case OpCode.LOOP:
+                    ip = ip + 2 - readShort(code, ip);
+                    break;
+                case OpCode.CALL:
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    if (callValue(peek(argCount), argCount,
+                            frame.chunk.lines[start])) {
+                        if (code[start] == OpCode.TAIL_CALL) dropCaller();
+                        frame = frames[frameCount - 1];
+                        code = frame.chunk.code;
+                        constants = frame.chunk.constants;
+                        ip = frame.ip;
+                    }
+                    break;
+                }
+                case OpCode.GET_METHOD: {
+                    Expr.Get get = (Expr.Get)constants[readShort(code, ip)];
+                    ip += 2;
+                    Object object = peek(0);
+                    if (!(object instanceof TurtleInstance)) {
+                        throw new RuntimeError(get.name,
+                                "Only instances have properties.");
+                    }
+                    // Keeps the receiver under the callee for INVOKE.
+                    TurtleInstance instance = (TurtleInstance)object;
+                    TurtleFunction method = instance.method(get);
+                    push(method != null ? method : instance.get(get));
+                    break;
+                }
+                case OpCode.INVOKE:
+                case OpCode.TAIL_INVOKE: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    if (invoke(argCount, frame.chunk.lines[start])) {
+                        if (code[start] == OpCode.TAIL_INVOKE) dropCaller();
+                        frame = frames[frameCount - 1];
+                        code = frame.chunk.code;
+                        constants = frame.chunk.constants;
+                        ip = frame.ip;
+                    }
+                    break;
+                }
+                case OpCode.FUNCTION: {
+                    Chunk chunk = (Chunk)constants[readShort(code, ip)];
+                    ip += 2;
+                    push(new VmFunction(chunk, frame.environment));
+                    break;
+                }
+                case OpCode.INHERIT:
+                    if (!(peek(0) instanceof TurtleClass)) {
+                        throw new RuntimeError(frame.chunk.lines[start],
+                                "Superclass must be a class.");
+                    }
+                    if (interpreter.stats != null) {
+                        interpreter.stats.environment();
+                    }
+                    frame.environment = new Environment(frame.environment, 1);
+                    frame.environment.define(peek(0));
+                    break;
+                case OpCode.CLASS: {
+                    Token name = (Token)constants[readShort(code, ip)];
+                    int methodCount = code[ip + 2] & 0xff;
+                    boolean hasSuperclass = code[ip + 3] != 0;
+                    ip += 4;
+                    Map<String, TurtleFunction> methods = new HashMap<>();
+                    for (int i = stackTop - methodCount; i < stackTop; i++) {
+                        TurtleFunction method = (TurtleFunction)stack[i];
+                        methods.put(method.declaration.name.lexeme(), method);
+                    }
+                    stackTop -= methodCount;
+                    TurtleClass superclass = null;
+                    if (hasSuperclass) {
+                        superclass = (TurtleClass)pop();
+                        frame.environment = frame.environment.enclosing;
+                    }
+                    push(new TurtleClass(name.lexeme(), superclass, methods));
+                    break;
+                }
+                case OpCode.PUSH_SCOPE:
+                    if (interpreter.stats != null) {
+                        interpreter.stats.environment();
+                    }
+                    frame.environment = new Environment(frame.environment,
+                            readShort(code, ip));
+                    ip += 2;
+                    break;
+                case OpCode.POP_SCOPE:
+                    frame.environment = frame.environment.enclosing;
+                    break;
+                case OpCode.RETURN: {
+                    // The result takes the place of the frame's slots.
+                    if (frame.function != null && frame.function.isInitializer) {
+                        stack[stackTop - 1] = frame.receiver;
+                    }
+                    copySlot(stackTop - 1, frame.slots);
+                    stackTop = frame.slots + 1;
+                    frame.environment = null;
+                    frame.receiver = null;
+                    if (frame.function != null && interpreter.profiler != null) {
+                        interpreter.profiler.exit();
+                    }
+                    frameCount--;
+                    if (frameCount == base) return pop();
+                    frame = frames[frameCount - 1];
+                    code = frame.chunk.code;
+                    constants = frame.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                default:
+                    throw new RuntimeError(frame.chunk.lines[start],
+                            "Unknown opcode " + code[start] + ".");
+            }
+        }
+    }
+
+    // Calls the value below argCount arguments on the stack. Returns true if
+    // a new frame was pushed, false if the result is already on the stack.
+    private boolean callValue(Object callee, int argCount, int line) {
+        if (interpreter.profiler != null) interpreter.profiler.callLine = line;
+        if (callee instanceof VmFunction) {
+            VmFunction function = (VmFunction)callee;
+            checkArity(function.arity(), argCount, line);
+            pushCall(function, function.receiver, argCount);
+            return true;
+        }
+        if (callee instanceof TurtleClass) {
+            TurtleClass klass = (TurtleClass)callee;
+            if (interpreter.stats != null) interpreter.stats.instance(klass);
+            TurtleInstance instance = new TurtleInstance(klass);
+            TurtleFunction initializer = klass.initializer;
+            if (initializer instanceof VmFunction) {
+                checkArity(initializer.arity(), argCount, line);
+                pushCall((VmFunction)initializer, instance, argCount);
+                return true;
+            }
+            checkArity(klass.arity(), argCount, line);
+            if (initializer != null) {
+                initializer.invoke(interpreter, instance,
+                        popArguments(argCount));
+            } else {
+                stackTop -= argCount;
+            }
+            stackTop--;
+            push(instance);
+            return false;
+        }
+        if (callee instanceof TurtleCallable) {
+            TurtleCallable function = (TurtleCallable)callee;
+            checkArity(function.arity(), argCount, line);
+            List<Object> arguments = popArguments(argCount);
+            stackTop--;
+            try {
+                push(function.call(interpreter, arguments));
+            } catch (NativeError error) {
+                throw new RuntimeError(line, error.getMessage());
+            }
+            return false;
+        }
+        throw new RuntimeError(line, "Can only call functions and classes.");
+    }
+
+    // Calls the callee below argCount arguments, with the receiver GET_METHOD
+    // left under it. Returns true if a new frame was pushed.
+    private boolean invoke(int argCount, int line) {
+        if (interpreter.profiler != null) interpreter.profiler.callLine = line;
+        int calleeIndex = stackTop - argCount - 1;
+        Object callee = stack[calleeIndex];
+        // Methods only escape bound, so an unbound one came from GET_METHOD.
+        if (callee instanceof VmFunction) {
+            VmFunction method = (VmFunction)callee;
+            if (method.declaration.isMethod && method.receiver == null) {
+                checkArity(method.arity(), argCount, line);
+                TurtleInstance receiver =
+                        (TurtleInstance)stack[calleeIndex - 1];
+                // The receiver's slot becomes the frame's first.
+                moveSlots(calleeIndex, calleeIndex - 1, argCount + 1);
+                stackTop--;
+                pushCall(method, receiver, argCount);
+                return true;
+            }
+        }
+        // Anything else is an ordinary call once the receiver is dropped.
+        moveSlots(calleeIndex, calleeIndex - 1, argCount + 1);
+        stackTop--;
+        return callValue(callee, argCount, line);
+    }
+
+    // A function called in tail position takes over its caller's place on
+    // the frame stack and its caller's stack slots, so tail recursion runs
+    // in constant space.
+    private void dropCaller() {
+        CallFrame callee = frames[frameCount - 1];
+        CallFrame caller = frames[frameCount - 2];
+        moveSlots(callee.slots, caller.slots, stackTop - callee.slots);
+        stackTop -= callee.slots - caller.slots;
+        callee.slots = caller.slots;
+        caller.environment = null;
+        caller.receiver = null;
+        frames[frameCount - 2] = callee;
+        frames[frameCount - 1] = caller;
+        frameCount--;
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) {
+            // The callee's entry takes the place of the caller's.
+            profiler.exit();
+            profiler.exit();
+            profiler.enter(callee.function.declaration.name.lexeme());
+        }
+    }
+
+    // Starts a call of the function below argCount arguments, which are
+    // left where they are as the first slots of the new frame.
+    private void pushCall(VmFunction function, TurtleInstance receiver,
+                          int argCount) {
+        if (interpreter.stats != null) {
+            interpreter.stats.call(function.declaration);
+        }
+        int slots = stackTop - argCount - 1;
+        if (function.declaration.isMethod) stack[slots] = receiver;
+        pushFrame(function.chunk, function, receiver, function.closure,
+                slots);
+        if (interpreter.profiler != null) {
+            interpreter.profiler.enter(function.declaration.name.lexeme());
+        }
+    }
+
+    private List<Object> popArguments(int argCount) {
+        List<Object> arguments = new ArrayList<>(argCount);
+        for (int i = stackTop - argCount; i < stackTop; i++) {
+            arguments.add(value(i));
+        }
+        stackTop -= argCount;
+        return arguments;
+    }
+
+    private void checkArity(int arity, int argCount, int line) {
+        if (argCount != arity) {
+            throw new RuntimeError(line, "Expected " +
+                    arity + " arguments but got " + argCount + ".");
+        }
+    }
+
+    // Leaves the two operands unboxed, or fails if either isn't a number.
+    private void checkNumberOperands(CallFrame frame, int start) {
+        if (unbox(stackTop - 1) && unbox(stackTop - 2)) return;
+        throw new RuntimeError(frame.chunk.lines[start],
+                "Operands must be numbers.");
+    }
+
+    // Whether the slot holds a number, which is left unboxed if so.
+    private boolean unbox(int slot) {
+        Object value = stack[slot];
+        if (value == NUMBER) return true;
+        if (!(value instanceof Double)) return false;
+        numbers[slot] = (double)value;
+        stack[slot] = NUMBER;
+        return true;
+    }
+
+    private boolean isFalsey(int slot) {
+        Object value = stack[slot];
+        return value != NUMBER && !Interpreter.isTruthy(value);
+    }
+
+    // The value in the slot, boxed if it's a number. The box is kept in the
+    // slot so the value isn't boxed again.
+    private Object value(int slot) {
+        Object value = stack[slot];
+        if (value != NUMBER) return value;
+        Double boxed = numbers[slot];
+        stack[slot] = boxed;
+        return boxed;
+    }
+
+    private void pushSlot(int slot) {
+        if (stackTop == stack.length) grow();
+        copySlot(slot, stackTop++);
+    }
+
+    private void copySlot(int from, int to) {
+        stack[to] = stack[from];
+        numbers[to] = numbers[from];
+    }
+
+    private void moveSlots(int from, int to, int count) {
+        System.arraycopy(stack, from, stack, to, count);
+        System.arraycopy(numbers, from, numbers, to, count);
+    }
+
+    private void grow() {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+        numbers = Arrays.copyOf(numbers, numbers.length * 2);
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) grow();
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        return value(--stackTop);
+    }
+
+    private Object peek(int distance) {
+        return value(stackTop - 1 - distance);
+    }
+}
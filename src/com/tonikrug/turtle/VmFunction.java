@@ -0,0 +1,33 @@
+package com.tonikrug.turtle;
+
+import java.util.List;
+
+// A function compiled for the VM. It is still a TurtleFunction so classes,
+// instances and binding work the same for both engines, but calling it runs
+// its Chunk instead of walking the declaration's body.
+class VmFunction extends TurtleFunction {
+    final Chunk chunk;
+
+    VmFunction(Chunk chunk, Environment closure) {
+        this(chunk, closure, null);
+    }
+
+    private VmFunction(Chunk chunk, Environment closure,
+                       TurtleInstance receiver) {
+        super(chunk.function, closure, chunk.isInitializer, receiver);
+        this.chunk = chunk;
+    }
+
+    @Override
+    VmFunction bind(TurtleInstance instance) {
+        return new VmFunction(chunk, closure, instance);
+    }
+
+    // Natives call back in on the VM of the thread they run on, which
+    // for a task isn't the one that created this function.
+    @Override
+    Object invoke(Interpreter interpreter, TurtleInstance receiver,
+                  List<Object> arguments) {
+        return interpreter.vm.call(this, receiver, arguments);
+    }
+}